@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.atm.mvn.run;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Maps cache keys to file names in the plugin's cache directories and
+ * writes the cache files.
+ */
+class CacheFiles {
+
+    private CacheFiles() {
+    }
+
+    /**
+     * @param directory
+     *            The cache directory.
+     * @param key
+     *            The cache key.
+     * @param extension
+     *            The file extension, including the dot.
+     * @return The file named by the SHA-1 hash of the key.
+     */
+    static File getFile(File directory, String key, String extension) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+
+            StringBuilder fileName = new StringBuilder();
+            for (byte b : digest.digest(key.getBytes("UTF-8"))) {
+                fileName.append(String.format("%02x", b));
+            }
+
+            return new File(directory, fileName + extension);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Replace the contents of a cache file. The contents are written to a
+     * temporary file first, so that concurrent builds never read a partially
+     * written file.
+     *
+     * @param file
+     *            The cache file.
+     * @param contents
+     *            Writes the new contents.
+     * @throws IOException
+     *             if the file could not be written.
+     */
+    static void write(File file, Contents contents) throws IOException {
+        file.getParentFile().mkdirs();
+
+        // each writer gets its own temporary file
+        File tempFile =
+            File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            contents.writeTo(out);
+            out.close();
+            out = null;
+
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tempFile);
+            }
+        } finally {
+            IOUtil.close(out);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * The contents of a cache file.
+     */
+    interface Contents {
+        void writeTo(OutputStream out) throws IOException;
+    }
+}
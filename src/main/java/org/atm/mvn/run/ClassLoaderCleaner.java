@@ -0,0 +1,392 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.atm.mvn.run;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.IOUtil;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Releases the references that keep an application's class loader reachable
+ * after its main method has returned, so that the class loader and its
+ * classes can be garbage collected.
+ */
+public class ClassLoaderCleaner {
+
+    private static volatile boolean internalsWarningLogged = false;
+
+    private ClassLoader classLoader;
+
+    private Set<Thread> threadsBeforeRun;
+
+    private ThreadCleanupPolicy threadCleanupPolicy = ThreadCleanupPolicy.NONE;
+
+    private long threadJoinTimeout = 10000;
+
+    private Log log;
+
+    /**
+     * @param classLoader
+     *            The class loader the application was run in.
+     * @param threadsBeforeRun
+     *            The threads that were alive before the application was run,
+     *            which are never touched.
+     */
+    public ClassLoaderCleaner(
+            ClassLoader classLoader,
+            Set<Thread> threadsBeforeRun) {
+        super();
+        this.classLoader = classLoader;
+        this.threadsBeforeRun = threadsBeforeRun;
+    }
+
+    public void setLogger(Log log) {
+        this.log = log;
+    }
+
+    public void setThreadCleanupPolicy(ThreadCleanupPolicy threadCleanupPolicy) {
+        this.threadCleanupPolicy = threadCleanupPolicy;
+    }
+
+    /**
+     * @param threadJoinTimeout
+     *            The maximum number of milliseconds to wait for each thread.
+     */
+    public void setThreadJoinTimeout(long threadJoinTimeout) {
+        this.threadJoinTimeout = threadJoinTimeout;
+    }
+
+    /**
+     * @return The threads that are currently alive.
+     */
+    public static Set<Thread> getLiveThreads() {
+        return ImmutableSet.copyOf(Thread.getAllStackTraces().keySet());
+    }
+
+    /**
+     * Release everything holding on to the class loader. The shutdown hooks
+     * and JDBC drivers are only released if none of the application's
+     * non-daemon threads are still running, since the application is still
+     * working otherwise. Daemon threads, e.g. timers or a JDBC driver's
+     * cleanup thread, only keep the class loader itself open.
+     */
+    public void cleanUp() {
+        List<Thread> remainingThreads = cleanUpThreads();
+
+        clearThreadLocals(Thread.currentThread());
+
+        int nonDaemonThreads = 0;
+        for (Thread thread : remainingThreads) {
+            if (!thread.isDaemon()) {
+                nonDaemonThreads++;
+            }
+        }
+
+        if (nonDaemonThreads > 0) {
+            log.warn(
+                    "Not running shutdown hooks, deregistering JDBC drivers " +
+                    "or closing the class loader, " +
+                    nonDaemonThreads +
+                    " application thread(s) are still running.");
+            return;
+        }
+
+        runShutdownHooks();
+
+        deregisterJdbcDrivers();
+
+        // daemon threads may have stopped along with their drivers
+        int daemonThreads = 0;
+        for (Thread thread : remainingThreads) {
+            if (thread.isAlive()) {
+                daemonThreads++;
+            }
+        }
+
+        if (daemonThreads == 0) {
+            close();
+        } else {
+            log.debug(
+                    "Not closing the class loader, " + daemonThreads +
+                    " application daemon thread(s) are still running.");
+        }
+    }
+
+    /**
+     * Join or interrupt the threads started by the application according to
+     * the thread clean up policy.
+     *
+     * @return The application threads that are still alive.
+     */
+    protected List<Thread> cleanUpThreads() {
+        List<Thread> applicationThreads = getApplicationThreads();
+
+        for (Thread thread : applicationThreads) {
+            log.debug("Application thread still running: " + thread);
+
+            if (threadCleanupPolicy == ThreadCleanupPolicy.INTERRUPT) {
+                thread.interrupt();
+            }
+        }
+
+        if (threadCleanupPolicy != ThreadCleanupPolicy.NONE) {
+            for (Thread thread : applicationThreads) {
+                try {
+                    thread.join(threadJoinTimeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        List<Thread> remainingThreads = Lists.newArrayList();
+        for (Thread thread : applicationThreads) {
+            if (thread.isAlive()) {
+                remainingThreads.add(thread);
+            }
+        }
+
+        return remainingThreads;
+    }
+
+    /**
+     * @return The live threads that were started by the application.
+     */
+    protected List<Thread> getApplicationThreads() {
+        List<Thread> applicationThreads = Lists.newArrayList();
+
+        for (Thread thread : getLiveThreads()) {
+            if (thread != Thread.currentThread()
+                    && !threadsBeforeRun.contains(thread)
+                    && isLoadedBy(thread)) {
+                applicationThreads.add(thread);
+            }
+        }
+
+        return applicationThreads;
+    }
+
+    /**
+     * Run and remove the shutdown hooks registered by the application, as
+     * the JVM would have done had the application run on its own.
+     */
+    protected void runShutdownHooks() {
+        Class<?> hooksClass;
+        Map<?, ?> hooks;
+        try {
+            hooksClass = Class.forName("java.lang.ApplicationShutdownHooks");
+            Field hooksField = hooksClass.getDeclaredField("hooks");
+            hooksField.setAccessible(true);
+
+            hooks = (Map<?, ?>) hooksField.get(null);
+        } catch (Exception e) {
+            warnInternalsInaccessible("inspect shutdown hooks", e);
+            return;
+        }
+
+        if (hooks == null) {
+            // the JVM is already shutting down
+            return;
+        }
+
+        List<Thread> applicationHooks = Lists.newArrayList();
+        synchronized (hooksClass) {
+            for (Object hook : hooks.keySet()) {
+                if (isLoadedBy((Thread) hook)) {
+                    applicationHooks.add((Thread) hook);
+                }
+            }
+        }
+
+        for (Thread hook : applicationHooks) {
+            log.debug("Running application shutdown hook: " + hook);
+
+            Runtime.getRuntime().removeShutdownHook(hook);
+
+            hook.start();
+            try {
+                hook.join(threadJoinTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Deregister the JDBC drivers loaded by the class loader.
+     */
+    protected void deregisterJdbcDrivers() {
+        if (!(classLoader instanceof IsolatedClassLoader)) {
+            return;
+        }
+
+        String className = JdbcDriverDeregistration.class.getName();
+
+        InputStream classStream =
+            JdbcDriverDeregistration.class.getResourceAsStream(
+                    JdbcDriverDeregistration.class.getSimpleName() + ".class");
+        try {
+            byte[] classBytes = IOUtil.toByteArray(classStream);
+
+            @SuppressWarnings("unchecked")
+            Callable<List<String>> deregistration =
+                (Callable<List<String>>)
+                    ((IsolatedClassLoader) classLoader)
+                        .injectClass(className, classBytes)
+                        .getDeclaredConstructor()
+                        .newInstance();
+
+            for (String driverClassName : deregistration.call()) {
+                log.debug("Deregistered JDBC driver: " + driverClassName);
+            }
+        } catch (Exception e) {
+            log.debug("Unable to deregister JDBC drivers: " + e);
+        } finally {
+            IOUtil.close(classStream);
+        }
+    }
+
+    /**
+     * Remove the thread local values of the thread that reference classes
+     * from the class loader.
+     *
+     * @param thread
+     *            The thread to clean up.
+     */
+    protected void clearThreadLocals(Thread thread) {
+        try {
+            Field threadLocalsField =
+                Thread.class.getDeclaredField("threadLocals");
+            threadLocalsField.setAccessible(true);
+
+            Object threadLocalMap = threadLocalsField.get(thread);
+            if (threadLocalMap == null) {
+                return;
+            }
+
+            Field tableField =
+                threadLocalMap.getClass().getDeclaredField("table");
+            tableField.setAccessible(true);
+
+            Method removeMethod =
+                threadLocalMap.getClass().getDeclaredMethod(
+                        "remove", ThreadLocal.class);
+            removeMethod.setAccessible(true);
+
+            Object table = tableField.get(threadLocalMap);
+            for (int i = 0; i < Array.getLength(table); i++) {
+                Reference<?> entry = (Reference<?>) Array.get(table, i);
+                if (entry == null) {
+                    continue;
+                }
+
+                ThreadLocal<?> threadLocal = (ThreadLocal<?>) entry.get();
+
+                Field valueField = entry.getClass().getDeclaredField("value");
+                valueField.setAccessible(true);
+                Object value = valueField.get(entry);
+
+                if (threadLocal != null
+                        && (isLoadedBy(threadLocal) || isLoadedBy(value))) {
+                    log.debug("Removing thread local: " + threadLocal);
+
+                    removeMethod.invoke(threadLocalMap, threadLocal);
+                }
+            }
+        } catch (Exception e) {
+            warnInternalsInaccessible("clear thread locals", e);
+        }
+    }
+
+    /**
+     * Close the class loader, releasing its open JAR files. Shared stable
+     * class loader layers are left open, but are told that the class loader
+     * no longer uses them.
+     */
+    protected void close() {
+        if (StableClassLoaderCache.isCached(classLoader)) {
+            return;
+        }
+
+        if (classLoader instanceof Closeable) {
+            try {
+                ((Closeable) classLoader).close();
+            } catch (IOException e) {
+                log.debug("Unable to close class loader: " + e);
+            }
+        }
+
+        StableClassLoaderCache.removeChild(classLoader);
+    }
+
+    /**
+     * Shutdown hooks and thread locals can only be reached through JDK
+     * internals, which newer JVMs only open up on request. Tell the user
+     * once how to allow it.
+     */
+    private void warnInternalsInaccessible(String action, Exception e) {
+        if (!internalsWarningLogged) {
+            internalsWarningLogged = true;
+
+            log.warn(
+                    "Unable to " + action + " of the application (" + e +
+                    "). Add --add-opens java.base/java.lang=ALL-UNNAMED " +
+                    "to MAVEN_OPTS to allow the class loader to be cleaned up.");
+        } else {
+            log.debug("Unable to " + action + ": " + e);
+        }
+    }
+
+    private boolean isLoadedBy(Thread thread) {
+        return thread.getContextClassLoader() == classLoader
+                || isLoadedBy((Object) thread);
+    }
+
+    private boolean isLoadedBy(Object object) {
+        if (object == null) {
+            return false;
+        }
+
+        for (ClassLoader current = object.getClass().getClassLoader();
+                current != null;
+                current = current.getParent()) {
+            if (current == classLoader) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.atm.mvn.run;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.WeakReference;
+import java.text.MessageFormat;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Reports whether the class loader of a finished application was garbage
+ * collected, and how much class metadata memory the run left behind.
+ * <p>
+ * Usage: create the diagnostic before the class loader, {@link #watch} the
+ * class loader once the application is done, drop every strong reference to
+ * it and then call {@link #report()}.
+ */
+public class ClassLoaderLeakDiagnostic {
+
+    private static final int MAX_GC_ATTEMPTS = 5;
+
+    private Log log;
+
+    private long classMetadataUsedBeforeRun;
+
+    private WeakReference<ClassLoader> classLoaderReference;
+
+    public ClassLoaderLeakDiagnostic(Log log) {
+        super();
+        this.log = log;
+        this.classMetadataUsedBeforeRun = getClassMetadataUsed();
+    }
+
+    /**
+     * @param classLoader
+     *            The class loader expected to be collected.
+     */
+    public void watch(ClassLoader classLoader) {
+        this.classLoaderReference = new WeakReference<ClassLoader>(classLoader);
+    }
+
+    /**
+     * Request garbage collection until the class loader is collected or the
+     * attempts run out, and log the outcome.
+     *
+     * @return true if the class loader was collected.
+     */
+    public boolean report() {
+        boolean collected = false;
+        for (int i = 0; i < MAX_GC_ATTEMPTS && !collected; i++) {
+            System.gc();
+            collected = classLoaderReference.get() == null;
+        }
+
+        long retainedKilobytes =
+            (getClassMetadataUsed() - classMetadataUsedBeforeRun) / 1024;
+
+        if (collected) {
+            log.info(MessageFormat.format(
+                    "Application class loader was collected, " +
+                    "class metadata retained: {0} KB",
+                    retainedKilobytes));
+        } else {
+            log.warn(MessageFormat.format(
+                    "Application class loader was NOT collected " +
+                    "and is probably leaking, " +
+                    "class metadata retained: {0} KB",
+                    retainedKilobytes));
+        }
+
+        return collected;
+    }
+
+    /**
+     * @return The bytes used by the metaspace (or permanent generation on
+     *         older JVMs), or 0 if it cannot be determined.
+     */
+    private static long getClassMetadataUsed() {
+        long used = 0;
+
+        for (MemoryPoolMXBean memoryPool :
+                ManagementFactory.getMemoryPoolMXBeans()) {
+            String name = memoryPool.getName();
+            if (name.equals("Metaspace") || name.contains("Perm Gen")) {
+                used += memoryPool.getUsage().getUsed();
+            }
+        }
+
+        return used;
+    }
+}
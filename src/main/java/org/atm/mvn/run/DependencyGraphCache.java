@@ -0,0 +1,625 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.atm.mvn.run;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.aether.RepositoryEvent;
+import org.sonatype.aether.RepositorySystem;
+import org.sonatype.aether.RepositorySystemSession;
+import org.sonatype.aether.artifact.Artifact;
+import org.sonatype.aether.collection.CollectRequest;
+import org.sonatype.aether.collection.DependencyCollectionException;
+import org.sonatype.aether.graph.Dependency;
+import org.sonatype.aether.graph.DependencyNode;
+import org.sonatype.aether.repository.RemoteRepository;
+import org.sonatype.aether.repository.RepositoryPolicy;
+import org.sonatype.aether.util.DefaultRepositoryCache;
+import org.sonatype.aether.util.DefaultRepositorySystemSession;
+import org.sonatype.aether.util.artifact.DefaultArtifact;
+import org.sonatype.aether.util.graph.DefaultDependencyNode;
+import org.sonatype.aether.util.listener.AbstractRepositoryListener;
+import org.sonatype.aether.util.listener.ChainedRepositoryListener;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Stores collected dependency graphs on disk, so that the POMs of a
+ * dependency tree do not need to be read and parsed again on every launch.
+ * <p>
+ * Graphs are keyed by the root artifact's coordinates, the scope filter and
+ * the repositories of the collect request. A cached graph is discarded as
+ * soon as any POM read to collect it changes, including parent POMs and
+ * imported BOMs, or when the local POM or the local repository metadata of
+ * any of its SNAPSHOT artifacts changes. The metadata is updated whenever
+ * resolving the graph finds a newer SNAPSHOT in a remote repository, so the
+ * next launch collects the graph again.
+ * <p>
+ * The remote repositories of each node are kept with the graph, so that
+ * artifacts missing from the local repository can still be downloaded from
+ * the repositories declared in the POMs. Their authentication and proxies
+ * are not stored, but selected again from the session.
+ * Roots with version ranges or the LATEST/RELEASE meta versions are never
+ * cached, since the root version itself is not fixed.
+ */
+public class DependencyGraphCache {
+
+    private File directory;
+
+    private RepositorySystemSession repositorySystemSession;
+
+    private Log log;
+
+    /**
+     * @param directory
+     *            The directory the graphs are stored in.
+     * @param repositorySystemSession
+     *            The session used to locate SNAPSHOT POMs in the local
+     *            repository.
+     */
+    public DependencyGraphCache(
+            File directory,
+            RepositorySystemSession repositorySystemSession) {
+        super();
+        this.directory = directory;
+        this.repositorySystemSession = repositorySystemSession;
+    }
+
+    public void setLogger(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * @param artifact
+     *            The root artifact.
+     * @return true if graphs for the root artifact can be cached.
+     */
+    public static boolean isCacheable(Artifact artifact) {
+        String version = artifact.getVersion();
+
+        return !version.equals("LATEST")
+                && !version.equals("RELEASE")
+                && !version.startsWith("[")
+                && !version.startsWith("(");
+    }
+
+    /**
+     * Load the graph previously collected for the request.
+     *
+     * @param collectRequest
+     *            The collect request.
+     * @param scope
+     *            The scope the graph will be filtered by.
+     * @return The root node of the cached graph, or null if there is no
+     *         valid cached graph.
+     */
+    public DependencyNode load(CollectRequest collectRequest, String scope) {
+        if (!isCacheable(collectRequest.getRoot().getArtifact())) {
+            return null;
+        }
+
+        String key = getKey(collectRequest, scope);
+        File file = CacheFiles.getFile(directory, key, ".ser");
+
+        if (!file.isFile()) {
+            return null;
+        }
+
+        CachedGraph cachedGraph;
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+
+            cachedGraph = (CachedGraph) in.readObject();
+        } catch (Exception e) {
+            log.debug("Unable to read cached dependency graph " + file + ": " + e);
+            return null;
+        } finally {
+            IOUtil.close(in);
+        }
+
+        if (!key.equals(cachedGraph.key)) {
+            return null;
+        }
+
+        for (Map.Entry<String, Long> pomTimestamp :
+                cachedGraph.pomTimestamps.entrySet()) {
+            if (new File(pomTimestamp.getKey()).lastModified()
+                    != pomTimestamp.getValue()) {
+                log.debug(
+                        "Cached dependency graph is out of date, " +
+                        pomTimestamp.getKey() + " changed: " + file);
+                return null;
+            }
+        }
+
+        Map<CachedNode, DependencyNode> nodes =
+            new IdentityHashMap<CachedNode, DependencyNode>();
+
+        DependencyNode root =
+            toDependencyNode(cachedGraph.root, collectRequest, nodes);
+
+        if (root == null) {
+            log.debug("Cached dependency graph is out of date: " + file);
+            return null;
+        }
+
+        log.debug("Using cached dependency graph: " + file);
+
+        return root;
+    }
+
+    /**
+     * Load the graph previously collected for the request, or collect it and
+     * store it for the next time.
+     *
+     * @param repositorySystem
+     *            The repository system used to collect the graph.
+     * @param collectRequest
+     *            The collect request.
+     * @param scope
+     *            The scope the graph will be filtered by.
+     * @return The root node of the graph.
+     * @throws DependencyCollectionException
+     *             if the graph could not be collected.
+     */
+    public DependencyNode collect(
+            RepositorySystem repositorySystem,
+            CollectRequest collectRequest,
+            String scope)
+            throws DependencyCollectionException {
+        DependencyNode root = load(collectRequest, scope);
+        if (root != null) {
+            return root;
+        }
+
+        /*
+         * Record every POM read, including parents and imports. A fresh cache
+         * makes sure POMs already read earlier in the build are read again.
+         */
+        PomRecorder pomRecorder = new PomRecorder();
+
+        DefaultRepositorySystemSession recordingSession =
+            new DefaultRepositorySystemSession(repositorySystemSession);
+        recordingSession.setCache(new DefaultRepositoryCache());
+        if (repositorySystemSession.getRepositoryListener() == null) {
+            recordingSession.setRepositoryListener(pomRecorder);
+        } else {
+            recordingSession.setRepositoryListener(
+                    new ChainedRepositoryListener(
+                            repositorySystemSession.getRepositoryListener(),
+                            pomRecorder));
+        }
+
+        root =
+            repositorySystem.collectDependencies(
+                    recordingSession,
+                    collectRequest)
+                .getRoot();
+
+        store(collectRequest, scope, root, pomRecorder.getPomFiles());
+
+        return root;
+    }
+
+    /**
+     * Store the graph collected for the request.
+     *
+     * @param collectRequest
+     *            The collect request.
+     * @param scope
+     *            The scope the graph will be filtered by.
+     * @param root
+     *            The root node of the collected graph.
+     * @param pomFiles
+     *            The POM files read to collect the graph. The graph is
+     *            discarded when any of them changes.
+     */
+    public void store(
+            CollectRequest collectRequest,
+            String scope,
+            DependencyNode root,
+            Collection<File> pomFiles) {
+        if (!isCacheable(collectRequest.getRoot().getArtifact())) {
+            return;
+        }
+
+        final CachedGraph cachedGraph = new CachedGraph();
+        cachedGraph.key = getKey(collectRequest, scope);
+        cachedGraph.root =
+            toCachedNode(
+                    root,
+                    new IdentityHashMap<DependencyNode, CachedNode>(),
+                    Maps.<RemoteRepository, CachedRepository>newHashMap());
+        for (File pomFile : pomFiles) {
+            cachedGraph.pomTimestamps.put(
+                    pomFile.getAbsolutePath(),
+                    pomFile.lastModified());
+        }
+
+        File file = CacheFiles.getFile(directory, cachedGraph.key, ".ser");
+
+        try {
+            CacheFiles.write(file, new CacheFiles.Contents() {
+                public void writeTo(OutputStream out) throws IOException {
+                    ObjectOutputStream objectOut =
+                        new ObjectOutputStream(new BufferedOutputStream(out));
+                    objectOut.writeObject(cachedGraph);
+                    objectOut.flush();
+                }
+            });
+
+            log.debug("Cached dependency graph: " + file);
+        } catch (IOException e) {
+            log.debug("Unable to cache dependency graph " + file + ": " + e);
+        }
+    }
+
+    private CachedNode toCachedNode(
+            DependencyNode node,
+            Map<DependencyNode, CachedNode> cachedNodes,
+            Map<RemoteRepository, CachedRepository> cachedRepositories) {
+        CachedNode cachedNode = cachedNodes.get(node);
+        if (cachedNode != null) {
+            return cachedNode;
+        }
+
+        Dependency dependency = node.getDependency();
+        Artifact artifact = dependency.getArtifact();
+
+        cachedNode = new CachedNode();
+        cachedNode.artifact = new CachedArtifact(artifact);
+        for (Artifact relocation : node.getRelocations()) {
+            cachedNode.relocations.add(new CachedArtifact(relocation));
+        }
+        for (Artifact alias : node.getAliases()) {
+            cachedNode.aliases.add(new CachedArtifact(alias));
+        }
+        for (RemoteRepository repository : node.getRepositories()) {
+            // most nodes share the same repositories, store them only once
+            CachedRepository cachedRepository =
+                cachedRepositories.get(repository);
+            if (cachedRepository == null) {
+                cachedRepository = new CachedRepository(repository);
+                cachedRepositories.put(repository, cachedRepository);
+            }
+
+            cachedNode.repositories.add(cachedRepository);
+        }
+        cachedNode.scope = dependency.getScope();
+        cachedNode.optional = dependency.isOptional();
+        cachedNode.timestamp = getSnapshotTimestamp(artifact);
+
+        cachedNodes.put(node, cachedNode);
+
+        for (DependencyNode child : node.getChildren()) {
+            cachedNode.children.add(
+                    toCachedNode(child, cachedNodes, cachedRepositories));
+        }
+
+        return cachedNode;
+    }
+
+    /**
+     * @return The dependency node, or null if a SNAPSHOT changed.
+     */
+    private DependencyNode toDependencyNode(
+            CachedNode cachedNode,
+            CollectRequest collectRequest,
+            Map<CachedNode, DependencyNode> nodes) {
+        DependencyNode node = nodes.get(cachedNode);
+        if (node != null) {
+            return node;
+        }
+
+        Artifact artifact = cachedNode.artifact.toArtifact();
+
+        if (getSnapshotTimestamp(artifact) != cachedNode.timestamp) {
+            return null;
+        }
+
+        DefaultDependencyNode dependencyNode =
+            new DefaultDependencyNode(
+                    new Dependency(
+                            artifact,
+                            cachedNode.scope,
+                            cachedNode.optional));
+        dependencyNode.setRelocations(toArtifacts(cachedNode.relocations));
+        dependencyNode.setAliases(toArtifacts(cachedNode.aliases));
+        dependencyNode.setRepositories(toRepositories(cachedNode.repositories));
+        dependencyNode.setRequestContext(collectRequest.getRequestContext());
+
+        nodes.put(cachedNode, dependencyNode);
+
+        for (CachedNode cachedChild : cachedNode.children) {
+            DependencyNode child =
+                toDependencyNode(cachedChild, collectRequest, nodes);
+            if (child == null) {
+                return null;
+            }
+
+            dependencyNode.getChildren().add(child);
+        }
+
+        return dependencyNode;
+    }
+
+    private List<RemoteRepository> toRepositories(
+            List<CachedRepository> cachedRepositories) {
+        List<RemoteRepository> repositories = Lists.newArrayList();
+        for (CachedRepository cachedRepository : cachedRepositories) {
+            RemoteRepository repository = cachedRepository.toRepository();
+            repository.setAuthentication(
+                    repositorySystemSession.getAuthenticationSelector()
+                        .getAuthentication(repository));
+            repository.setProxy(
+                    repositorySystemSession.getProxySelector()
+                        .getProxy(repository));
+
+            repositories.add(repository);
+        }
+
+        return repositories;
+    }
+
+    private List<Artifact> toArtifacts(List<CachedArtifact> cachedArtifacts) {
+        List<Artifact> artifacts = Lists.newArrayList();
+        for (CachedArtifact cachedArtifact : cachedArtifacts) {
+            artifacts.add(cachedArtifact.toArtifact());
+        }
+
+        return artifacts;
+    }
+
+    /**
+     * @return The latest last modified time of the local POM and repository
+     *         metadata of a SNAPSHOT artifact, 0 if they are missing, or -1
+     *         for release versions.
+     */
+    private long getSnapshotTimestamp(Artifact artifact) {
+        if (!artifact.isSnapshot()) {
+            return -1;
+        }
+
+        Artifact pomArtifact =
+            new DefaultArtifact(
+                    artifact.getGroupId(),
+                    artifact.getArtifactId(),
+                    "",
+                    "pom",
+                    artifact.getBaseVersion());
+
+        File pomFile =
+            new File(
+                    repositorySystemSession.getLocalRepository().getBasedir(),
+                    repositorySystemSession.getLocalRepositoryManager()
+                        .getPathForLocalArtifact(pomArtifact));
+
+        long timestamp = pomFile.lastModified();
+
+        // updated when a newer SNAPSHOT was found in a remote repository
+        File[] files = pomFile.getParentFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("maven-metadata")
+                        || file.getName().equals("resolver-status.properties")) {
+                    timestamp = Math.max(timestamp, file.lastModified());
+                }
+            }
+        }
+
+        return timestamp;
+    }
+
+    private String getKey(CollectRequest collectRequest, String scope) {
+        StringBuilder key = new StringBuilder();
+
+        key.append(collectRequest.getRoot().getArtifact());
+        key.append('|').append(scope);
+
+        for (RemoteRepository repository : collectRequest.getRepositories()) {
+            key.append('|').append(repository.getId());
+            key.append('=').append(repository.getUrl());
+        }
+
+        return key.toString();
+    }
+
+    private static class CachedGraph implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        private String key;
+
+        private CachedNode root;
+
+        private Map<String, Long> pomTimestamps = Maps.newHashMap();
+    }
+
+    private static class CachedNode implements Serializable {
+        private static final long serialVersionUID = 3L;
+
+        private CachedArtifact artifact;
+
+        private List<CachedArtifact> relocations = Lists.newArrayList();
+
+        private List<CachedArtifact> aliases = Lists.newArrayList();
+
+        private List<CachedRepository> repositories = Lists.newArrayList();
+
+        private String scope;
+
+        private boolean optional;
+
+        private long timestamp;
+
+        private List<CachedNode> children = Lists.newArrayList();
+    }
+
+    private static class CachedArtifact implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String groupId;
+
+        private String artifactId;
+
+        private String classifier;
+
+        private String extension;
+
+        private String version;
+
+        /**
+         * Includes e.g. the local path of system scope dependencies.
+         */
+        private Map<String, String> properties;
+
+        public CachedArtifact(Artifact artifact) {
+            super();
+            this.groupId = artifact.getGroupId();
+            this.artifactId = artifact.getArtifactId();
+            this.classifier = artifact.getClassifier();
+            this.extension = artifact.getExtension();
+            this.version = artifact.getVersion();
+            this.properties = Maps.newHashMap(artifact.getProperties());
+        }
+
+        public Artifact toArtifact() {
+            return new DefaultArtifact(
+                    groupId,
+                    artifactId,
+                    classifier,
+                    extension,
+                    version,
+                    properties,
+                    (File) null);
+        }
+    }
+
+    private static class CachedRepository implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String id;
+
+        private String contentType;
+
+        private String url;
+
+        private CachedPolicy releasePolicy;
+
+        private CachedPolicy snapshotPolicy;
+
+        private boolean repositoryManager;
+
+        private List<CachedRepository> mirroredRepositories =
+            Lists.newArrayList();
+
+        public CachedRepository(RemoteRepository repository) {
+            super();
+            this.id = repository.getId();
+            this.contentType = repository.getContentType();
+            this.url = repository.getUrl();
+            this.releasePolicy = new CachedPolicy(repository.getPolicy(false));
+            this.snapshotPolicy = new CachedPolicy(repository.getPolicy(true));
+            this.repositoryManager = repository.isRepositoryManager();
+            for (RemoteRepository mirroredRepository :
+                    repository.getMirroredRepositories()) {
+                mirroredRepositories.add(
+                        new CachedRepository(mirroredRepository));
+            }
+        }
+
+        public RemoteRepository toRepository() {
+            RemoteRepository repository =
+                new RemoteRepository(id, contentType, url);
+            repository.setPolicy(false, releasePolicy.toPolicy());
+            repository.setPolicy(true, snapshotPolicy.toPolicy());
+            repository.setRepositoryManager(repositoryManager);
+
+            List<RemoteRepository> repositories = Lists.newArrayList();
+            for (CachedRepository mirroredRepository : mirroredRepositories) {
+                repositories.add(mirroredRepository.toRepository());
+            }
+            repository.setMirroredRepositories(repositories);
+
+            return repository;
+        }
+    }
+
+    private static class CachedPolicy implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private boolean enabled;
+
+        private String updatePolicy;
+
+        private String checksumPolicy;
+
+        public CachedPolicy(RepositoryPolicy policy) {
+            super();
+            this.enabled = policy.isEnabled();
+            this.updatePolicy = policy.getUpdatePolicy();
+            this.checksumPolicy = policy.getChecksumPolicy();
+        }
+
+        public RepositoryPolicy toPolicy() {
+            return new RepositoryPolicy(enabled, updatePolicy, checksumPolicy);
+        }
+    }
+
+    /**
+     * Records the POM files resolved while a graph is collected.
+     */
+    private static class PomRecorder extends AbstractRepositoryListener {
+
+        private Set<File> pomFiles = Sets.newHashSet();
+
+        @Override
+        public synchronized void artifactResolved(RepositoryEvent event) {
+            Artifact artifact = event.getArtifact();
+
+            if (artifact != null
+                    && "pom".equals(artifact.getExtension())
+                    && artifact.getFile() != null) {
+                pomFiles.add(artifact.getFile());
+            }
+        }
+
+        public synchronized Set<File> getPomFiles() {
+            return Sets.newHashSet(pomFiles);
+        }
+    }
+}
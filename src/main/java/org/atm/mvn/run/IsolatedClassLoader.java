@@ -39,11 +39,14 @@ public class IsolatedClassLoader extends URLClassLoader {
     public IsolatedClassLoader(ClassLoader parent, boolean childDelegation) {
         super(EMPTY_URL_ARRAY, parent);
 
+        this.parent = parent;
         this.childDelegation = childDelegation;
     }
 
     public IsolatedClassLoader(ClassLoader parent) {
         super(EMPTY_URL_ARRAY, parent);
+
+        this.parent = parent;
     }
 
     public void addURL(URL url) {
@@ -54,6 +57,14 @@ public class IsolatedClassLoader extends URLClassLoader {
         }
     }
 
+    /**
+     * Define a class directly in this class loader, regardless of whether
+     * the class is also visible through the parent class loader.
+     */
+    Class<?> injectClass(String name, byte[] bytes) {
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+
     public synchronized Class<?> loadClass(String name) throws ClassNotFoundException {
         Class<?> c;
 
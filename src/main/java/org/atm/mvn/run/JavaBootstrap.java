@@ -23,7 +23,10 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.text.MessageFormat;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.maven.plugin.logging.Log;
@@ -32,6 +35,7 @@ import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
 import org.springframework.core.io.support.ResourcePatternResolver;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 /**
  * Runs the main method of a given class in a custom class path.
@@ -46,6 +50,23 @@ public class JavaBootstrap {
 
     private Log log;
     
+    private boolean layeredClassLoader = false;
+    
+    private Set<String> dependentClassPathUrls = Sets.newHashSet();
+    
+    private boolean classLoaderCleanup = false;
+    
+    private ThreadCleanupPolicy threadCleanupPolicy = ThreadCleanupPolicy.NONE;
+    
+    private long threadJoinTimeout = 10000;
+    
+    private boolean leakDiagnostics = false;
+    
+    private OutputPipeline outputPipeline;
+    
+    private static final Pattern SNAPSHOT_TIMESTAMP_PATTERN =
+        Pattern.compile("-\\d{8}\\.\\d{6}-\\d+");
+    
     public JavaBootstrap(
             List<URL> classPathUrls, 
             String className,
@@ -60,13 +81,101 @@ public class JavaBootstrap {
         this.log = log;
     }
 
+    /**
+     * Split the class path into a shared parent layer holding the stable
+     * class path entries and a child layer holding the volatile ones.
+     * 
+     * @param layeredClassLoader
+     *            true to build a layered class loader hierarchy.
+     * @see #isVolatileClassPathUrl(URL)
+     */
+    public void setLayeredClassLoader(boolean layeredClassLoader) {
+        this.layeredClassLoader = layeredClassLoader;
+    }
+
+    /**
+     * Mark class path entries as volatile because they depend on volatile
+     * entries. The stable layer cannot see the classes of the volatile layer,
+     * so such entries must not be placed in the stable layer.
+     * 
+     * @param dependentClassPathUrls
+     *            The class path URLs that depend on volatile entries.
+     */
+    public void setDependentClassPathUrls(Collection<URL> dependentClassPathUrls) {
+        this.dependentClassPathUrls = Sets.newHashSet();
+        for (URL classPathUrl : dependentClassPathUrls) {
+            this.dependentClassPathUrls.add(classPathUrl.toExternalForm());
+        }
+    }
+
     /**
      * Run the main method in the class using the specified class path.
+     * Afterwards the application threads are handled according to the thread
+     * clean up policy, and the class loader is cleaned up if requested so
+     * that it can be garbage collected.
      * 
      * @throws Exception
      *             Any exceptions that might occur.
      */
     public void run() throws Exception {
+        Set<Thread> threadsBeforeRun = ClassLoaderCleaner.getLiveThreads();
+        
+        ClassLoaderLeakDiagnostic leakDiagnostic = null;
+        if (leakDiagnostics) {
+            leakDiagnostic = new ClassLoaderLeakDiagnostic(log);
+        }
+        
+        ClassLoader bootstrapClassLoader = 
+            createClassLoader(
+                    ClassLoader.getSystemClassLoader(),
+                    false);
+        
+        try {
+            if (outputPipeline != null) {
+                outputPipeline.start();
+            }
+            
+            run(bootstrapClassLoader);
+        } finally {
+            ClassLoaderCleaner cleaner = 
+                new ClassLoaderCleaner(bootstrapClassLoader, threadsBeforeRun);
+            cleaner.setLogger(log);
+            cleaner.setThreadCleanupPolicy(threadCleanupPolicy);
+            cleaner.setThreadJoinTimeout(threadJoinTimeout);
+            try {
+                if (classLoaderCleanup) {
+                    cleaner.cleanUp();
+                } else {
+                    cleaner.cleanUpThreads();
+                }
+            } finally {
+                // never leave the system streams redirected
+                if (outputPipeline != null) {
+                    outputPipeline.stop();
+                }
+            }
+            
+            if (leakDiagnostic != null) {
+                leakDiagnostic.watch(bootstrapClassLoader);
+                
+                // drop the strong references before checking for collection
+                cleaner = null;
+                bootstrapClassLoader = null;
+                
+                leakDiagnostic.report();
+            }
+        }
+    }
+
+    /**
+     * Run the main method in the class using the given class loader.
+     * 
+     * @param bootstrapClassLoader
+     *            The class loader with the specified class path.
+     * @throws Exception
+     *             Any exceptions that might occur.
+     */
+    protected void run(ClassLoader bootstrapClassLoader) throws Exception {
         Thread currentThread = Thread.currentThread();
         
         ClassLoader existingClassLoader = 
@@ -76,11 +185,6 @@ public class JavaBootstrap {
              * Replace the current class loader with one with all of the needed
              * dependencies.
              */
-            ClassLoader bootstrapClassLoader = 
-                createClassLoader(
-                        ClassLoader.getSystemClassLoader(),
-                        false);
-            
             currentThread.setContextClassLoader(bootstrapClassLoader);
             
             // find the java class
@@ -97,6 +201,53 @@ public class JavaBootstrap {
         }
     }
 
+    /**
+     * @param classLoaderCleanup
+     *            true to release the references that keep the class loader
+     *            reachable after the run.
+     * @see ClassLoaderCleaner
+     */
+    public void setClassLoaderCleanup(boolean classLoaderCleanup) {
+        this.classLoaderCleanup = classLoaderCleanup;
+    }
+
+    /**
+     * @param threadCleanupPolicy
+     *            What to do with application threads still running after the
+     *            main method returns.
+     */
+    public void setThreadCleanupPolicy(ThreadCleanupPolicy threadCleanupPolicy) {
+        this.threadCleanupPolicy = threadCleanupPolicy;
+    }
+
+    /**
+     * @param threadJoinTimeout
+     *            The maximum number of milliseconds to wait for each
+     *            application thread.
+     */
+    public void setThreadJoinTimeout(long threadJoinTimeout) {
+        this.threadJoinTimeout = threadJoinTimeout;
+    }
+
+    /**
+     * @param leakDiagnostics
+     *            true to report whether the class loader was garbage collected
+     *            after the run.
+     * @see ClassLoaderLeakDiagnostic
+     */
+    public void setLeakDiagnostics(boolean leakDiagnostics) {
+        this.leakDiagnostics = leakDiagnostics;
+    }
+
+    /**
+     * @param outputPipeline
+     *            The pipeline to send the application's output through while
+     *            it runs, or null to leave the system streams alone.
+     */
+    public void setOutputPipeline(OutputPipeline outputPipeline) {
+        this.outputPipeline = outputPipeline;
+    }
+
     /**
      * Create a class loader with the provided class path URLs and the given
      * parent class loader.
@@ -110,12 +261,46 @@ public class JavaBootstrap {
     protected ClassLoader createClassLoader(
             ClassLoader parentClassLoader, 
             boolean childDelegation) {
+        List<URL> volatileClassPathUrls = classPathUrls;
+        
+        if (layeredClassLoader) {
+            List<URL> stableClassPathUrls = Lists.newArrayList();
+            volatileClassPathUrls = Lists.newArrayList();
+            
+            for (URL classPathUrl : classPathUrls) {
+                if (isVolatileClassPathUrl(classPathUrl)) {
+                    volatileClassPathUrls.add(classPathUrl);
+                } else {
+                    stableClassPathUrls.add(classPathUrl);
+                }
+            }
+            
+            if (!stableClassPathUrls.isEmpty()) {
+                log.debug("Using Stable Java Classpath Layer:");
+                for (URL classPathUrl : stableClassPathUrls) {
+                    log.debug("  " + classPathUrl);
+                }
+                
+                // the stable layer is shared, the volatile layer sits on top
+                parentClassLoader = 
+                    StableClassLoaderCache.getClassLoader(
+                            parentClassLoader, 
+                            childDelegation, 
+                            stableClassPathUrls);
+            }
+        }
+        
         IsolatedClassLoader classLoader = 
             new IsolatedClassLoader(
                     parentClassLoader, childDelegation);
         
+        if (StableClassLoaderCache.isCached(parentClassLoader)) {
+            // keep the stable layer open while this class loader is in use
+            StableClassLoaderCache.addChild(parentClassLoader, classLoader);
+        }
+        
         log.debug("Building Java Classpath:");
-        for (URL classPathUrl : classPathUrls) {
+        for (URL classPathUrl : volatileClassPathUrls) {
             log.debug("  " + classPathUrl);
             classLoader.addURL(classPathUrl);
         }
@@ -123,6 +308,34 @@ public class JavaBootstrap {
         return classLoader;
     }
 
+    /**
+     * Determine whether a class path entry is expected to change between
+     * launches, and so must not be placed in the shared stable layer.
+     * Directories (e.g. project output folders), SNAPSHOT artifacts and the
+     * entries set with {@link #setDependentClassPathUrls(Collection)} are
+     * considered volatile.
+     * 
+     * @param classPathUrl
+     *            The class path URL.
+     * @return true if the class path entry is volatile.
+     */
+    protected boolean isVolatileClassPathUrl(URL classPathUrl) {
+        if (dependentClassPathUrls.contains(classPathUrl.toExternalForm())) {
+            return true;
+        }
+        
+        String path = classPathUrl.getPath();
+        
+        if (path.endsWith("/")) {
+            return true;
+        }
+        
+        String fileName = path.substring(path.lastIndexOf('/') + 1);
+        
+        return fileName.contains("SNAPSHOT")
+                || SNAPSHOT_TIMESTAMP_PATTERN.matcher(fileName).find();
+    }
+
     /**
      * Attempt to resolve the class from the class name specified.
      * 
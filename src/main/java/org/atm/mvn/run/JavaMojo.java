@@ -21,7 +21,10 @@ package org.atm.mvn.run;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.maven.plugin.AbstractMojo;
@@ -31,12 +34,15 @@ import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
+import org.sonatype.aether.RepositoryException;
 import org.sonatype.aether.RepositorySystem;
 import org.sonatype.aether.RepositorySystemSession;
 import org.sonatype.aether.artifact.Artifact;
 import org.sonatype.aether.collection.CollectRequest;
+import org.sonatype.aether.collection.DependencyCollectionException;
 import org.sonatype.aether.graph.Dependency;
 import org.sonatype.aether.graph.DependencyFilter;
+import org.sonatype.aether.graph.DependencyNode;
 import org.sonatype.aether.resolution.ArtifactResult;
 import org.sonatype.aether.resolution.DependencyRequest;
 import org.sonatype.aether.resolution.DependencyResolutionException;
@@ -99,22 +105,180 @@ public class JavaMojo extends AbstractMojo {
     @Parameter(defaultValue = "${name}", readonly = true, required = false)
     private String className;
 
+    /**
+     * Load release version dependencies in a shared class loader that is
+     * reused across launches, and only rebuild the class loader for SNAPSHOT
+     * dependencies and project outputs.
+     * <p>
+     * Release dependencies that depend on a SNAPSHOT in the resolved graph
+     * are kept out of the shared class loader. Classes in the shared class
+     * loader still cannot see the application's other classes, so this does
+     * not work for libraries that load application classes through their own
+     * class loader (e.g. {@code Class.forName} without the context class
+     * loader), nor for a release dependency whose own dependency was replaced
+     * by a SNAPSHOT version through dependency mediation.
+     * <p>
+     * The static state of classes in the shared class loader, e.g. logger
+     * registries or reflection caches, is shared by every launch, and may
+     * keep earlier launches' classes from being garbage collected.
+     */
+    @Parameter(defaultValue = "${layered}", readonly = true, required = false)
+    private boolean layeredClassLoader = false;
+
+    /**
+     * Release what keeps the application's class loader reachable after its
+     * main method returns, so that repeated launches in the same JVM do not
+     * leak memory.
+     * <p>
+     * The application's thread locals on the calling thread are removed.
+     * Once no non-daemon application threads remain, the application's
+     * shutdown hooks are run instead of at JVM exit and its JDBC drivers are
+     * deregistered. The class loader is closed once no application threads
+     * remain at all. On Java 9 and later, removing the shutdown hooks and
+     * thread locals requires
+     * {@code --add-opens java.base/java.lang=ALL-UNNAMED} in
+     * {@code MAVEN_OPTS}.
+     * 
+     * @see ClassLoaderCleaner
+     */
+    @Parameter(defaultValue = "${classLoaderCleanup}", readonly = true, required = false)
+    private boolean classLoaderCleanup = false;
+
+    /**
+     * What to do with the threads the application started that are still
+     * running after its main method returns: NONE, JOIN or INTERRUPT.
+     */
+    @Parameter(defaultValue = "${threadCleanup}", readonly = true, required = false)
+    private ThreadCleanupPolicy threadCleanupPolicy = ThreadCleanupPolicy.NONE;
+
+    /**
+     * The maximum number of milliseconds to wait for each application thread.
+     */
+    @Parameter(defaultValue = "${threadJoinTimeout}", readonly = true, required = false)
+    private long threadJoinTimeout = 10000;
+
+    /**
+     * Report whether the application's class loader was garbage collected
+     * after the run, and how much class metadata memory was retained.
+     */
+    @Parameter(defaultValue = "${leakDiagnostics}", readonly = true, required = false)
+    private boolean leakDiagnostics = false;
+
+    /**
+     * Cache collected dependency graphs in the local repository, so that the
+     * POMs of the dependency tree are not read again on the next launch.
+     * 
+     * @see DependencyGraphCache
+     */
+    @Parameter(defaultValue = "${cacheGraphs}", readonly = true, required = false)
+    private boolean cacheDependencyGraphs = false;
+
+    /**
+     * Buffer the application's standard output and error and write them out
+     * from a separate thread, so that a slow console does not slow down the
+     * application.
+     * 
+     * @see OutputPipeline
+     */
+    @Parameter(defaultValue = "${bufferOutput}", readonly = true, required = false)
+    private boolean bufferOutput = false;
+
+    /**
+     * The maximum number of writes held in the output buffer.
+     */
+    @Parameter(defaultValue = "${outputBufferSize}", readonly = true, required = false)
+    private int outputBufferSize = 8192;
+
+    /**
+     * What the application does when the output buffer is full: BLOCK or
+     * DROP.
+     */
+    @Parameter(defaultValue = "${outputBackpressure}", readonly = true, required = false)
+    private OutputBackpressure outputBackpressure = OutputBackpressure.BLOCK;
+
+    /**
+     * Write the buffered output to this file instead of the console.
+     */
+    @Parameter(defaultValue = "${outputFile}", readonly = true, required = false)
+    private File outputFile;
+
+    /**
+     * Remember what LATEST, RELEASE, SNAPSHOT and version range
+     * specifications resolve to, instead of checking the repository metadata
+     * on every launch.
+     * <p>
+     * Versions are resolved from the same repositories as the dependencies.
+     * As long as the run does not use remote repositories, only the local
+     * repository's metadata is read.
+     * 
+     * @see VersionResolutionCache
+     */
+    @Parameter(defaultValue = "${cacheVersions}", readonly = true, required = false)
+    private boolean cacheVersions = false;
+
+    /**
+     * The number of seconds a cached version is used before it is refreshed
+     * in the background.
+     */
+    @Parameter(defaultValue = "${versionCacheTtl}", readonly = true, required = false)
+    private long versionCacheTtl = 300;
+
+    /**
+     * The maximum number of milliseconds to wait for background version
+     * refreshes after the application has run. Refreshes still running are
+     * cancelled, keeping the previously cached versions.
+     */
+    @Parameter(defaultValue = "${versionRefreshTimeout}", readonly = true, required = false)
+    private long versionRefreshTimeout = 10000;
+
     private String[] args;
     
+    private List<URL> dependentClassPathUrls = Lists.newArrayList();
+    
+    private VersionResolutionCache versionResolutionCache;
+    
     @Override
     public void execute() 
             throws MojoExecutionException, MojoFailureException {
-        List<URL> classPath = resolveClassPath();
-        
-        JavaBootstrap bootstrap = new JavaBootstrap(classPath, className, args);
-        bootstrap.setLogger(getLog());
+        if (bufferOutput && outputBufferSize < 1) {
+            throw new MojoExecutionException(
+                    "outputBufferSize must be at least 1, was " + 
+                    outputBufferSize);
+        }
         
         try {
-            bootstrap.run();
-        } catch (Exception e) {
-            throw new MojoExecutionException(
-                    "Failed to run " + className, 
-                    e);
+            List<URL> classPath = resolveClassPath();
+            
+            JavaBootstrap bootstrap = new JavaBootstrap(classPath, className, args);
+            bootstrap.setLogger(getLog());
+            bootstrap.setLayeredClassLoader(layeredClassLoader);
+            bootstrap.setDependentClassPathUrls(dependentClassPathUrls);
+            bootstrap.setClassLoaderCleanup(classLoaderCleanup);
+            bootstrap.setThreadCleanupPolicy(threadCleanupPolicy);
+            bootstrap.setThreadJoinTimeout(threadJoinTimeout);
+            bootstrap.setLeakDiagnostics(leakDiagnostics);
+            
+            if (bufferOutput) {
+                OutputPipeline outputPipeline = new OutputPipeline(outputBufferSize);
+                outputPipeline.setLogger(getLog());
+                outputPipeline.setBackpressure(outputBackpressure);
+                outputPipeline.setOutputFile(outputFile);
+                
+                bootstrap.setOutputPipeline(outputPipeline);
+            }
+            
+            try {
+                bootstrap.run();
+            } catch (Exception e) {
+                throw new MojoExecutionException(
+                        "Failed to run " + className, 
+                        e);
+            }
+        } finally {
+            if (versionResolutionCache != null) {
+                // the refreshes must not outlive the build's session
+                versionResolutionCache.awaitRefreshes(versionRefreshTimeout);
+            }
         }
     }
     
@@ -167,17 +331,65 @@ public class JavaMojo extends AbstractMojo {
         CollectRequest collectRequest = new CollectRequest();
         dependencyRequest.setCollectRequest(collectRequest);
         
+//        collectRequest.setRepositories(remoteRepositories);
+        
+        if (cacheVersions) {
+            /*
+             * Avoid checking the repository metadata on every launch. The
+             * versions are looked up in the repositories the dependencies are
+             * resolved from.
+             */
+            versionResolutionCache = 
+                new VersionResolutionCache(
+                        new File(
+                                repositorySystemSession
+                                    .getLocalRepository().getBasedir(),
+                                ".cache/run-maven-plugin/versions"),
+                        repositorySystem,
+                        repositorySystemSession);
+            versionResolutionCache.setLogger(getLog());
+            versionResolutionCache.setTimeToLive(versionCacheTtl * 1000);
+            
+            try {
+                artifact = 
+                    versionResolutionCache.resolve(
+                            artifact, 
+                            collectRequest.getRepositories());
+            } catch (RepositoryException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        
         // here's the artifact desired
         Dependency root = new Dependency(artifact, null);
         collectRequest.setRoot(root);
         
-//        collectRequest.setRepositories(remoteRepositories);
-        
         // specify a scope on the dependency resolution
-        DependencyFilter dependencyFilter = new ScopeDependencyFilter("runtime");
+        String scope = "runtime";
+        DependencyFilter dependencyFilter = new ScopeDependencyFilter(scope);
         dependencyRequest.setFilter(dependencyFilter);
         
         try {
+            if (cacheDependencyGraphs) {
+                // use a previously collected graph instead of reading the POMs
+                DependencyGraphCache dependencyGraphCache = 
+                    new DependencyGraphCache(
+                            new File(
+                                    repositorySystemSession
+                                        .getLocalRepository().getBasedir(),
+                                    ".cache/run-maven-plugin/graphs"),
+                            repositorySystemSession);
+                dependencyGraphCache.setLogger(getLog());
+                
+                DependencyNode rootNode = 
+                    dependencyGraphCache.collect(
+                            repositorySystem, 
+                            collectRequest, 
+                            scope);
+                
+                dependencyRequest.setRoot(rootNode);
+            }
+            
             DependencyResult dependencyResult = 
                 repositorySystem.resolveDependencies(
                         repositorySystemSession, 
@@ -197,9 +409,71 @@ public class JavaMojo extends AbstractMojo {
                 }
             }
             
+            findDependentArtifacts(
+                    dependencyResult.getRoot(), 
+                    new IdentityHashMap<DependencyNode, Boolean>(), 
+                    dependentClassPathUrls);
+            
             return artifactUrls;
+        } catch (DependencyCollectionException e) {
+            throw new RuntimeException(e);
         } catch (DependencyResolutionException e) {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Find the release artifacts in the graph that depend on SNAPSHOT
+     * artifacts or directories, directly or transitively, and add them to
+     * the dependent class path URLs.
+     * 
+     * @param node
+     *            The node to start from.
+     * @param volatileNodes
+     *            Whether each visited node is volatile.
+     * @param dependentClassPathUrls
+     *            The dependent class path URLs found.
+     * @return true if the node is volatile.
+     */
+    static boolean findDependentArtifacts(
+            DependencyNode node, 
+            Map<DependencyNode, Boolean> volatileNodes, 
+            Collection<URL> dependentClassPathUrls) {
+        Boolean visited = volatileNodes.get(node);
+        if (visited != null) {
+            return visited;
+        }
+        
+        // guard against cycles while the children are visited
+        volatileNodes.put(node, false);
+        
+        Artifact nodeArtifact = node.getDependency().getArtifact();
+        File nodeFile = nodeArtifact.getFile();
+        
+        boolean isVolatile = 
+            nodeArtifact.isSnapshot() 
+                || (nodeFile != null && nodeFile.isDirectory());
+        
+        boolean dependsOnVolatile = false;
+        for (DependencyNode child : node.getChildren()) {
+            dependsOnVolatile |= 
+                findDependentArtifacts(
+                        child, 
+                        volatileNodes, 
+                        dependentClassPathUrls);
+        }
+        
+        if (!isVolatile && dependsOnVolatile && nodeFile != null) {
+            try {
+                dependentClassPathUrls.add(nodeFile.toURI().toURL());
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        
+        isVolatile |= dependsOnVolatile;
+        volatileNodes.put(node, isVolatile);
+        
+        return isVolatile;
+    }
 }
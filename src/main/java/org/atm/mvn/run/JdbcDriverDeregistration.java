@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.atm.mvn.run;
+
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Deregisters the JDBC drivers loaded by the class loader that defines this
+ * class.
+ * <p>
+ * {@link DriverManager} only hands out drivers visible to the calling class,
+ * so this class is defined directly in the isolated class loader by
+ * {@link ClassLoaderCleaner}. It must only depend on JDK classes.
+ */
+public class JdbcDriverDeregistration implements Callable<List<String>> {
+
+    public List<String> call() throws SQLException {
+        ClassLoader classLoader = getClass().getClassLoader();
+
+        List<String> deregisteredDrivers = new ArrayList<String>();
+
+        Enumeration<Driver> drivers = DriverManager.getDrivers();
+        while (drivers.hasMoreElements()) {
+            Driver driver = drivers.nextElement();
+
+            // leave drivers from parent class loaders alone
+            if (driver.getClass().getClassLoader() == classLoader) {
+                DriverManager.deregisterDriver(driver);
+
+                deregisteredDrivers.add(driver.getClass().getName());
+            }
+        }
+
+        return deregisteredDrivers;
+    }
+}
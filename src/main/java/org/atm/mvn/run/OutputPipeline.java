@@ -0,0 +1,320 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.atm.mvn.run;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Decouples the output of an application run in process from the speed of
+ * the console.
+ * <p>
+ * While the pipeline is started, {@link System#out} and {@link System#err}
+ * are replaced by streams that copy each write into an
+ * {@link OutputRingBuffer}. A dedicated writer thread drains the buffer to
+ * the original streams, or to a file through a {@link FileChannel} when an
+ * output file is set.
+ */
+public class OutputPipeline {
+
+    private static final byte STDOUT = 0;
+
+    private static final byte STDERR = 1;
+
+    private static final long IDLE_PARK_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long MIN_BLOCK_PARK_NANOS =
+        TimeUnit.MICROSECONDS.toNanos(1);
+
+    private static final long MAX_BLOCK_PARK_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final OutputRingBuffer ringBuffer;
+
+    private OutputBackpressure backpressure = OutputBackpressure.BLOCK;
+
+    private File outputFile;
+
+    private Log log;
+
+    private PrintStream originalOut;
+
+    private PrintStream originalErr;
+
+    private FileChannel outputChannel;
+
+    private Thread writerThread;
+
+    private volatile boolean running;
+
+    /**
+     * Set once the writer thread has exited, after which chunks left in the
+     * buffer are written by whoever holds the lock of this pipeline.
+     */
+    private volatile boolean stopped;
+
+    private final AtomicLong droppedBytes = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            The maximum number of writes held in the buffer.
+     */
+    public OutputPipeline(int capacity) {
+        super();
+        this.ringBuffer = new OutputRingBuffer(capacity);
+    }
+
+    public void setLogger(Log log) {
+        this.log = log;
+    }
+
+    public void setBackpressure(OutputBackpressure backpressure) {
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * @param outputFile
+     *            The file to write both output streams to, or null to write
+     *            to the console.
+     */
+    public void setOutputFile(File outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * Redirect the system streams into the buffer and start the writer
+     * thread.
+     *
+     * @throws IOException
+     *             if the output file cannot be opened.
+     */
+    public void start() throws IOException {
+        originalOut = System.out;
+        originalErr = System.err;
+
+        if (outputFile != null) {
+            outputChannel = new FileOutputStream(outputFile).getChannel();
+        }
+
+        droppedBytes.set(0);
+        stopped = false;
+        running = true;
+
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "run-maven-plugin-output");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        System.setOut(new PrintStream(new RingBufferOutputStream(STDOUT), true));
+        System.setErr(new PrintStream(new RingBufferOutputStream(STDERR), true));
+    }
+
+    /**
+     * Restore the system streams and wait for the writer thread to write out
+     * everything left in the buffer. Does nothing if the pipeline was never
+     * started.
+     */
+    public void stop() {
+        if (writerThread == null) {
+            return;
+        }
+
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+
+        running = false;
+        LockSupport.unpark(writerThread);
+
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // pick up chunks published after the writer thread checked the buffer
+        stopped = true;
+        drainRemaining();
+
+        synchronized (this) {
+            if (outputChannel != null) {
+                try {
+                    outputChannel.close();
+                } catch (IOException e) {
+                    log.warn("Unable to close output file " + outputFile, e);
+                }
+            }
+        }
+
+        if (droppedBytes.get() > 0) {
+            log.warn(
+                    "Dropped " + droppedBytes.get() +
+                    " bytes of application output, the output buffer was full.");
+        }
+
+        writerThread = null;
+    }
+
+    /**
+     * Write out the chunks left in the buffer once the writer thread has
+     * exited.
+     */
+    private synchronized void drainRemaining() {
+        while (!ringBuffer.isEmpty()) {
+            byte[] chunk = ringBuffer.poll();
+            if (chunk != null) {
+                writeChunk(chunk);
+            } else {
+                // a slot was claimed but its chunk is not published yet
+                Thread.yield();
+            }
+        }
+
+        originalOut.flush();
+        originalErr.flush();
+    }
+
+    /**
+     * @return The number of bytes dropped since the pipeline was started.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    private void drain() {
+        boolean flushed = true;
+
+        while (true) {
+            // read the flag first, so nothing published before stop is missed
+            boolean stopping = !running;
+
+            byte[] chunk = ringBuffer.poll();
+            if (chunk != null) {
+                writeChunk(chunk);
+                flushed = false;
+            } else if (stopping && ringBuffer.isEmpty()) {
+                break;
+            } else {
+                if (!flushed) {
+                    originalOut.flush();
+                    originalErr.flush();
+                    flushed = true;
+                }
+
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+
+        originalOut.flush();
+        originalErr.flush();
+    }
+
+    private void writeChunk(byte[] chunk) {
+        if (outputChannel != null && outputChannel.isOpen()) {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 1, chunk.length - 1);
+            try {
+                while (buffer.hasRemaining()) {
+                    outputChannel.write(buffer);
+                }
+            } catch (IOException e) {
+                log.warn("Unable to write output file " + outputFile, e);
+            }
+        } else if (chunk[0] == STDERR) {
+            originalErr.write(chunk, 1, chunk.length - 1);
+        } else {
+            originalOut.write(chunk, 1, chunk.length - 1);
+        }
+    }
+
+    /**
+     * Copies each write into a chunk tagged with the stream it came from.
+     */
+    private class RingBufferOutputStream extends OutputStream {
+
+        private final byte stream;
+
+        public RingBufferOutputStream(byte stream) {
+            super();
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (len == 0) {
+                return;
+            }
+
+            if (!running) {
+                // written after the pipeline stopped, bypass the buffer
+                writeDirectly(b, off, len);
+                return;
+            }
+
+            byte[] chunk = new byte[len + 1];
+            chunk[0] = stream;
+            System.arraycopy(b, off, chunk, 1, len);
+
+            long parkNanos = MIN_BLOCK_PARK_NANOS;
+            while (!ringBuffer.offer(chunk)) {
+                if (!running) {
+                    // the pipeline stopped while waiting for room
+                    writeDirectly(b, off, len);
+                    return;
+                }
+
+                if (backpressure == OutputBackpressure.DROP) {
+                    droppedBytes.addAndGet(len);
+                    return;
+                }
+
+                // wait for the writer thread to make room, backing off
+                LockSupport.unpark(writerThread);
+                LockSupport.parkNanos(parkNanos);
+                parkNanos = Math.min(parkNanos * 2, MAX_BLOCK_PARK_NANOS);
+            }
+
+            if (stopped) {
+                // the writer thread may have exited before the chunk arrived
+                drainRemaining();
+            }
+        }
+
+        private void writeDirectly(byte[] b, int off, int len) {
+            (stream == STDERR ? originalErr : originalOut).write(b, off, len);
+        }
+    }
+}
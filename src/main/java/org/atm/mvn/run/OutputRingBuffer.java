@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.atm.mvn.run;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring buffer of output chunks with any number of
+ * writing threads and a single reading thread.
+ * <p>
+ * Writers claim a slot by advancing the tail, then publish their chunk into
+ * it. The reader empties a slot before advancing the head, so a writer that
+ * sees room between the head and the tail always finds its slot empty.
+ */
+public class OutputRingBuffer {
+
+    private final AtomicReferenceArray<byte[]> slots;
+
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            The maximum number of chunks held by the buffer, at least 1.
+     */
+    public OutputRingBuffer(int capacity) {
+        super();
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                    "Capacity must be at least 1: " + capacity);
+        }
+        this.slots = new AtomicReferenceArray<byte[]>(capacity);
+    }
+
+    /**
+     * Add a chunk to the buffer, if there is room.
+     *
+     * @param chunk
+     *            The chunk of output.
+     * @return false if the buffer is full.
+     */
+    public boolean offer(byte[] chunk) {
+        while (true) {
+            long currentTail = tail.get();
+
+            if (currentTail - head.get() >= slots.length()) {
+                return false;
+            }
+
+            if (tail.compareAndSet(currentTail, currentTail + 1)) {
+                slots.set(index(currentTail), chunk);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take the next chunk from the buffer. Must only be called by the single
+     * reading thread.
+     *
+     * @return The chunk, or null if no chunk has been published yet.
+     */
+    public byte[] poll() {
+        long currentHead = head.get();
+        int index = index(currentHead);
+
+        byte[] chunk = slots.get(index);
+        if (chunk != null) {
+            slots.set(index, null);
+            head.lazySet(currentHead + 1);
+        }
+
+        return chunk;
+    }
+
+    /**
+     * @return true if no chunks have been claimed but not yet read.
+     */
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % slots.length());
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.atm.mvn.run;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Caches the class loaders holding the stable (release version) layer of a
+ * class path, so that they can be shared by every launch in the plugin's
+ * lifetime. Only the volatile layer on top of them needs to be rebuilt.
+ * <p>
+ * At most {@link #MAX_CLASS_LOADERS} stable layers are kept. When another
+ * one is needed, the least recently used layer is evicted. An evicted layer
+ * is only closed once none of its children, the volatile layers registered
+ * with {@link #addChild(ClassLoader, ClassLoader)}, are in use any more:
+ * either released with {@link #removeChild(ClassLoader)} or garbage
+ * collected.
+ */
+public class StableClassLoaderCache {
+
+    /**
+     * The maximum number of stable class loader layers kept.
+     */
+    public static final int MAX_CLASS_LOADERS = 4;
+
+    private static final Map<List<Object>, IsolatedClassLoader> CLASS_LOADERS =
+        new LinkedHashMap<List<Object>, IsolatedClassLoader>(
+                MAX_CLASS_LOADERS + 1, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<List<Object>, IsolatedClassLoader> eldest) {
+                if (size() <= MAX_CLASS_LOADERS) {
+                    return false;
+                }
+
+                EVICTED_CLASS_LOADERS.add(eldest.getValue());
+                return true;
+            }
+        };
+
+    private static final Set<IsolatedClassLoader> EVICTED_CLASS_LOADERS =
+        Sets.newIdentityHashSet();
+
+    /**
+     * The children of each cached or evicted layer. The children are weakly
+     * referenced, so that a child which was never released does not keep
+     * its layer open forever.
+     */
+    private static final Map<ClassLoader, Set<ClassLoader>> CHILDREN =
+        new IdentityHashMap<ClassLoader, Set<ClassLoader>>();
+
+    private StableClassLoaderCache() {
+    }
+
+    /**
+     * Get the class loader for the given stable class path URLs, creating it
+     * if it has not been used before.
+     *
+     * @param parentClassLoader
+     *            The parent class loader.
+     * @param childDelegation
+     *            true if classes should be searched for in the class loader
+     *            before its parent.
+     * @param stableClassPathUrls
+     *            The class path URLs that are not expected to change.
+     * @return The shared {@link IsolatedClassLoader} instance.
+     */
+    public static synchronized IsolatedClassLoader getClassLoader(
+            ClassLoader parentClassLoader,
+            boolean childDelegation,
+            List<URL> stableClassPathUrls) {
+        /*
+         * URL.equals may resolve host names, so the external forms are used
+         * for the key instead.
+         */
+        List<Object> cacheKey = Lists.newArrayList();
+        cacheKey.add(parentClassLoader);
+        cacheKey.add(childDelegation);
+        for (URL stableClassPathUrl : stableClassPathUrls) {
+            cacheKey.add(stableClassPathUrl.toExternalForm());
+        }
+
+        IsolatedClassLoader classLoader = CLASS_LOADERS.get(cacheKey);
+        if (classLoader == null) {
+            classLoader =
+                new IsolatedClassLoader(parentClassLoader, childDelegation);
+            for (URL stableClassPathUrl : stableClassPathUrls) {
+                classLoader.addURL(stableClassPathUrl);
+            }
+
+            CLASS_LOADERS.put(cacheKey, classLoader);
+
+            closeUnusedEvictedLayers();
+        }
+
+        return classLoader;
+    }
+
+    /**
+     * Register a class loader built on top of a stable layer, which keeps the
+     * layer open until the child is removed.
+     *
+     * @param layer
+     *            The stable layer.
+     * @param child
+     *            The class loader using the layer as its parent.
+     */
+    public static synchronized void addChild(
+            ClassLoader layer,
+            ClassLoader child) {
+        Set<ClassLoader> children = CHILDREN.get(layer);
+        if (children == null) {
+            children =
+                Collections.newSetFromMap(
+                        new WeakHashMap<ClassLoader, Boolean>());
+            CHILDREN.put(layer, children);
+        }
+
+        children.add(child);
+    }
+
+    /**
+     * Release a class loader registered with
+     * {@link #addChild(ClassLoader, ClassLoader)}, closing its layer if the
+     * layer was evicted and has no other children.
+     *
+     * @param child
+     *            The class loader that is no longer used.
+     */
+    public static synchronized void removeChild(ClassLoader child) {
+        for (Set<ClassLoader> children : CHILDREN.values()) {
+            children.remove(child);
+        }
+
+        closeUnusedEvictedLayers();
+    }
+
+    /**
+     * Check whether the class loader is one of the shared stable layers.
+     *
+     * @param classLoader
+     *            The class loader to check.
+     * @return true if the class loader is cached by this class.
+     */
+    public static synchronized boolean isCached(ClassLoader classLoader) {
+        return CLASS_LOADERS.containsValue(classLoader)
+                || EVICTED_CLASS_LOADERS.contains(classLoader);
+    }
+
+    private static void closeUnusedEvictedLayers() {
+        Iterator<IsolatedClassLoader> evicted =
+            EVICTED_CLASS_LOADERS.iterator();
+        while (evicted.hasNext()) {
+            IsolatedClassLoader classLoader = evicted.next();
+
+            Set<ClassLoader> children = CHILDREN.get(classLoader);
+            if (children == null || children.isEmpty()) {
+                evicted.remove();
+                CHILDREN.remove(classLoader);
+
+                close(classLoader);
+            }
+        }
+    }
+
+    /**
+     * Release the open JAR files of an evicted layer that is no longer
+     * used.
+     */
+    private static void close(IsolatedClassLoader classLoader) {
+        if (classLoader instanceof Closeable) {
+            try {
+                ((Closeable) classLoader).close();
+            } catch (IOException e) {
+                // nothing more can be done for an evicted layer
+            }
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.atm.mvn.run;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.aether.RepositoryException;
+import org.sonatype.aether.RepositorySystem;
+import org.sonatype.aether.RepositorySystemSession;
+import org.sonatype.aether.artifact.Artifact;
+import org.sonatype.aether.repository.RemoteRepository;
+import org.sonatype.aether.resolution.VersionRangeRequest;
+import org.sonatype.aether.resolution.VersionRangeResolutionException;
+import org.sonatype.aether.resolution.VersionRangeResult;
+import org.sonatype.aether.resolution.VersionRequest;
+import org.sonatype.aether.util.DefaultRepositoryCache;
+import org.sonatype.aether.util.DefaultRepositorySystemSession;
+import org.sonatype.aether.util.DefaultSessionData;
+import org.sonatype.aether.version.Version;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Remembers what LATEST, RELEASE, SNAPSHOT and version range specifications
+ * were resolved to, so that launching the same specification again does not
+ * check the repository metadata every time.
+ * <p>
+ * A resolved version younger than the time to live is used as is. An older
+ * one is still used, but a refresh is started in the background so that a
+ * later launch picks up the new version. Only specifications that were never
+ * resolved before wait for the repositories. The refreshes use a copy of the
+ * build's repository session, and {@link #awaitRefreshes(long)} should be
+ * called before the build goes on.
+ */
+public class VersionResolutionCache {
+
+    private static final ExecutorService REFRESH_EXECUTOR =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "run-maven-plugin-versions");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private static final Set<String> REFRESHING_KEYS =
+        Collections.synchronizedSet(Sets.<String>newHashSet());
+
+    private static final String KEY_PROPERTY = "key";
+
+    private static final String VERSION_PROPERTY = "version";
+
+    private static final String RESOLVED_PROPERTY = "resolved";
+
+    private File directory;
+
+    private RepositorySystem repositorySystem;
+
+    private RepositorySystemSession repositorySystemSession;
+
+    private long timeToLive = 300000;
+
+    private final Map<String, PendingRefresh> pendingRefreshes =
+        Maps.newHashMap();
+
+    private Log log;
+
+    /**
+     * @param directory
+     *            The directory the resolved versions are stored in.
+     * @param repositorySystem
+     *            The repository system used to resolve versions.
+     * @param repositorySystemSession
+     *            The session used to resolve versions.
+     */
+    public VersionResolutionCache(
+            File directory,
+            RepositorySystem repositorySystem,
+            RepositorySystemSession repositorySystemSession) {
+        super();
+        this.directory = directory;
+        this.repositorySystem = repositorySystem;
+        this.repositorySystemSession = repositorySystemSession;
+    }
+
+    public void setLogger(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * @param timeToLive
+     *            The number of milliseconds a resolved version is used
+     *            without refreshing it.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @param artifact
+     *            The artifact.
+     * @return true if the version of the artifact has to be looked up in the
+     *         repository metadata.
+     */
+    public static boolean isResolvable(Artifact artifact) {
+        String version = artifact.getVersion();
+
+        return version.equals("LATEST")
+                || version.equals("RELEASE")
+                || version.endsWith("SNAPSHOT")
+                || isVersionRange(version);
+    }
+
+    /**
+     * Get the artifact with its version resolved, using the cached version
+     * where possible.
+     *
+     * @param artifact
+     *            The artifact with a version that needs resolution.
+     * @param repositories
+     *            The repositories to resolve the version from.
+     * @return The artifact with the resolved version.
+     * @throws RepositoryException
+     *             if the version could not be resolved and was never
+     *             resolved before.
+     */
+    public Artifact resolve(
+            final Artifact artifact,
+            final List<RemoteRepository> repositories)
+            throws RepositoryException {
+        if (!isResolvable(artifact)) {
+            return artifact;
+        }
+
+        final String key = getKey(artifact, repositories);
+        final File file = CacheFiles.getFile(directory, key, ".properties");
+
+        Properties cachedVersion = load(file, key);
+
+        if (cachedVersion == null) {
+            return artifact.setVersion(
+                    resolveAndStore(
+                            repositorySystemSession,
+                            artifact,
+                            repositories,
+                            key,
+                            file));
+        }
+
+        String version = cachedVersion.getProperty(VERSION_PROPERTY);
+        long resolved = getResolved(cachedVersion);
+
+        if (System.currentTimeMillis() - resolved >= timeToLive
+                && REFRESHING_KEYS.add(key)) {
+            log.debug("Refreshing cached version in the background: " + key);
+
+            final RepositorySystemSession refreshSession =
+                createRefreshSession();
+            final AtomicBoolean started = new AtomicBoolean();
+
+            Future<?> pendingRefresh = refresh(new Runnable() {
+                public void run() {
+                    if (!started.compareAndSet(false, true)) {
+                        // given up on before it started
+                        return;
+                    }
+
+                    try {
+                        resolveAndStore(
+                                refreshSession,
+                                artifact,
+                                repositories,
+                                key,
+                                file);
+                    } catch (RepositoryException e) {
+                        log.debug("Unable to refresh version " + key + ": " + e);
+                    } finally {
+                        REFRESHING_KEYS.remove(key);
+                    }
+                }
+            });
+
+            synchronized (pendingRefreshes) {
+                pendingRefreshes.put(key, new PendingRefresh(pendingRefresh, started));
+            }
+        }
+
+        log.debug("Using cached version " + version + " for " + key);
+
+        return artifact.setVersion(version);
+    }
+
+    /**
+     * Wait for the background refreshes started by this cache to finish.
+     * Refreshes that have not started by the timeout are cancelled, which
+     * leaves the previously cached versions in place. Refreshes already
+     * running are left to finish, since version resolution cannot be
+     * interrupted; they use their own copy of the repository session.
+     *
+     * @param timeout
+     *            The maximum number of milliseconds to wait in total.
+     */
+    public void awaitRefreshes(long timeout) {
+        Map<String, PendingRefresh> refreshes;
+        synchronized (pendingRefreshes) {
+            refreshes = Maps.newHashMap(pendingRefreshes);
+            pendingRefreshes.clear();
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        for (Map.Entry<String, PendingRefresh> refresh : refreshes.entrySet()) {
+            String key = refresh.getKey();
+            PendingRefresh pendingRefresh = refresh.getValue();
+
+            try {
+                pendingRefresh.future.get(
+                        Math.max(0, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+                continue;
+            } catch (ExecutionException e) {
+                log.debug("Unable to refresh version " + key + ": " + e);
+                continue;
+            } catch (TimeoutException e) {
+                // give up below
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (pendingRefresh.started.compareAndSet(false, true)) {
+                log.debug("Cancelling refresh of version " + key);
+
+                // a refresh cancelled before it started never releases its key
+                pendingRefresh.future.cancel(false);
+                REFRESHING_KEYS.remove(key);
+            } else {
+                log.debug("Refresh of version " + key + " is still running");
+            }
+        }
+    }
+
+    /**
+     * Run a background refresh.
+     *
+     * @param refresh
+     *            The refresh task.
+     * @return The {@link Future} of the refresh.
+     */
+    protected Future<?> refresh(Runnable refresh) {
+        return REFRESH_EXECUTOR.submit(refresh);
+    }
+
+    /**
+     * @return A copy of the session for a background refresh, detached from
+     *         the build's cache, data and listeners, which may be gone by
+     *         the time the refresh runs. With its own data, the refresh also
+     *         checks metadata the build already checked.
+     */
+    private RepositorySystemSession createRefreshSession() {
+        DefaultRepositorySystemSession refreshSession =
+            new DefaultRepositorySystemSession(repositorySystemSession);
+        refreshSession.setCache(new DefaultRepositoryCache());
+        refreshSession.setData(new DefaultSessionData());
+        refreshSession.setRepositoryListener(null);
+        refreshSession.setTransferListener(null);
+
+        return refreshSession;
+    }
+
+    private String resolveAndStore(
+            RepositorySystemSession session,
+            Artifact artifact,
+            List<RemoteRepository> repositories,
+            String key,
+            File file)
+            throws RepositoryException {
+        String version;
+
+        if (isVersionRange(artifact.getVersion())) {
+            VersionRangeResult rangeResult =
+                repositorySystem.resolveVersionRange(
+                        session,
+                        new VersionRangeRequest(artifact, repositories, null));
+
+            Version highestVersion = rangeResult.getHighestVersion();
+            if (highestVersion == null) {
+                throw new VersionRangeResolutionException(
+                        rangeResult,
+                        "No versions available for " + artifact);
+            }
+
+            version = highestVersion.toString();
+        } else {
+            version =
+                repositorySystem.resolveVersion(
+                        session,
+                        new VersionRequest(artifact, repositories, null))
+                    .getVersion();
+        }
+
+        Properties cachedVersion = new Properties();
+        cachedVersion.setProperty(KEY_PROPERTY, key);
+        cachedVersion.setProperty(VERSION_PROPERTY, version);
+        cachedVersion.setProperty(
+                RESOLVED_PROPERTY,
+                String.valueOf(System.currentTimeMillis()));
+
+        store(file, cachedVersion);
+
+        return version;
+    }
+
+    private Properties load(File file, String key) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        Properties cachedVersion = new Properties();
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            cachedVersion.load(in);
+        } catch (IOException e) {
+            log.debug("Unable to read cached version " + file + ": " + e);
+            return null;
+        } finally {
+            IOUtil.close(in);
+        }
+
+        if (!key.equals(cachedVersion.getProperty(KEY_PROPERTY))
+                || cachedVersion.getProperty(VERSION_PROPERTY) == null) {
+            return null;
+        }
+
+        try {
+            getResolved(cachedVersion);
+        } catch (NumberFormatException e) {
+            log.debug("Invalid cached version " + file + ": " + e);
+            return null;
+        }
+
+        return cachedVersion;
+    }
+
+    /**
+     * @return The time the cached version was resolved at.
+     * @throws NumberFormatException
+     *             if the time is missing or not a number.
+     */
+    private long getResolved(Properties cachedVersion) {
+        return Long.parseLong(cachedVersion.getProperty(RESOLVED_PROPERTY));
+    }
+
+    private void store(File file, final Properties cachedVersion) {
+        try {
+            CacheFiles.write(file, new CacheFiles.Contents() {
+                public void writeTo(OutputStream out) throws IOException {
+                    cachedVersion.store(out, null);
+                }
+            });
+        } catch (IOException e) {
+            log.debug("Unable to cache version " + file + ": " + e);
+        }
+    }
+
+    private String getKey(
+            Artifact artifact,
+            List<RemoteRepository> repositories) {
+        StringBuilder key = new StringBuilder();
+
+        key.append(artifact);
+
+        for (RemoteRepository repository : repositories) {
+            key.append('|').append(repository.getId());
+            key.append('=').append(repository.getUrl());
+        }
+
+        return key.toString();
+    }
+
+    private static boolean isVersionRange(String version) {
+        return version.startsWith("[") || version.startsWith("(");
+    }
+
+    private static class PendingRefresh {
+
+        private final Future<?> future;
+
+        /**
+         * Claimed by whichever comes first: the refresh starting, or giving
+         * up on it.
+         */
+        private final AtomicBoolean started;
+
+        public PendingRefresh(Future<?> future, AtomicBoolean started) {
+            super();
+            this.future = future;
+            this.started = started;
+        }
+    }
+}
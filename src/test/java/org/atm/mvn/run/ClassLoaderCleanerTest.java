@@ -0,0 +1,229 @@
+package org.atm.mvn.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class ClassLoaderCleanerTest {
+    
+    private static final String STUB_DRIVER_RESOURCE = 
+        "org/atm/mvn/run/StubDriver.class";
+
+    @Test
+    public void interruptApplicationThreads() throws Exception {
+        IsolatedClassLoader classLoader = 
+            new IsolatedClassLoader(ClassLoader.getSystemClassLoader());
+        
+        Set<Thread> threadsBeforeRun = ClassLoaderCleaner.getLiveThreads();
+        
+        Thread applicationThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        applicationThread.setContextClassLoader(classLoader);
+        applicationThread.start();
+        
+        ClassLoaderCleaner cleaner = 
+            new ClassLoaderCleaner(classLoader, threadsBeforeRun);
+        cleaner.setLogger(new SystemStreamLog());
+        
+        List<Thread> applicationThreads = cleaner.getApplicationThreads();
+        assertEquals(1, applicationThreads.size());
+        assertTrue(applicationThreads.contains(applicationThread));
+        
+        cleaner.setThreadCleanupPolicy(ThreadCleanupPolicy.INTERRUPT);
+        
+        assertTrue(cleaner.cleanUpThreads().isEmpty());
+        assertFalse(applicationThread.isAlive());
+    }
+    
+    @Test
+    public void deregisterJdbcDrivers() throws Exception {
+        IsolatedClassLoader classLoader = 
+            new IsolatedClassLoader(ClassLoader.getSystemClassLoader(), true);
+        classLoader.addURL(getTestClassesUrl());
+        
+        // loading the driver registers it
+        Class<?> driverClass = 
+            Class.forName(StubDriver.class.getName(), true, classLoader);
+        assertSame(classLoader, driverClass.getClassLoader());
+        
+        Method isRegistered = driverClass.getMethod("isRegistered");
+        assertEquals(true, isRegistered.invoke(null));
+        
+        ClassLoaderCleaner cleaner = 
+            new ClassLoaderCleaner(
+                    classLoader, 
+                    ClassLoaderCleaner.getLiveThreads());
+        cleaner.setLogger(new SystemStreamLog());
+        cleaner.deregisterJdbcDrivers();
+        
+        assertEquals(false, isRegistered.invoke(null));
+    }
+    
+    @Test
+    public void runShutdownHooks() throws Exception {
+        IsolatedClassLoader classLoader = createClassLoader();
+        
+        AtomicBoolean hookRun = new AtomicBoolean();
+        Thread hook = createHook(classLoader, hookRun);
+        Runtime.getRuntime().addShutdownHook(hook);
+        
+        createCleaner(classLoader).cleanUp();
+        
+        assertTrue(hookRun.get());
+        // the hook was already removed
+        assertFalse(Runtime.getRuntime().removeShutdownHook(hook));
+        assertNull(classLoader.findResource(STUB_DRIVER_RESOURCE));
+    }
+    
+    @Test
+    public void remainingThreadsKeepHooksAndClassLoader() throws Exception {
+        IsolatedClassLoader classLoader = createClassLoader();
+        
+        Set<Thread> threadsBeforeRun = ClassLoaderCleaner.getLiveThreads();
+        
+        AtomicBoolean hookRun = new AtomicBoolean();
+        Thread hook = createHook(classLoader, hookRun);
+        Runtime.getRuntime().addShutdownHook(hook);
+        
+        CountDownLatch finish = new CountDownLatch(1);
+        Thread applicationThread = createApplicationThread(classLoader, finish);
+        applicationThread.start();
+        try {
+            ClassLoaderCleaner cleaner = 
+                new ClassLoaderCleaner(classLoader, threadsBeforeRun);
+            cleaner.setLogger(new SystemStreamLog());
+            cleaner.cleanUp();
+            
+            assertFalse(hookRun.get());
+            assertNotNull(classLoader.findResource(STUB_DRIVER_RESOURCE));
+        } finally {
+            Runtime.getRuntime().removeShutdownHook(hook);
+            finish.countDown();
+            applicationThread.join();
+        }
+    }
+    
+    @Test
+    public void daemonThreadsOnlyKeepClassLoader() throws Exception {
+        IsolatedClassLoader classLoader = createClassLoader();
+        
+        Set<Thread> threadsBeforeRun = ClassLoaderCleaner.getLiveThreads();
+        
+        AtomicBoolean hookRun = new AtomicBoolean();
+        Runtime.getRuntime().addShutdownHook(createHook(classLoader, hookRun));
+        
+        CountDownLatch finish = new CountDownLatch(1);
+        Thread daemonThread = createApplicationThread(classLoader, finish);
+        daemonThread.setDaemon(true);
+        daemonThread.start();
+        try {
+            ClassLoaderCleaner cleaner = 
+                new ClassLoaderCleaner(classLoader, threadsBeforeRun);
+            cleaner.setLogger(new SystemStreamLog());
+            cleaner.cleanUp();
+            
+            assertTrue(hookRun.get());
+            assertNotNull(classLoader.findResource(STUB_DRIVER_RESOURCE));
+        } finally {
+            finish.countDown();
+            daemonThread.join();
+        }
+    }
+    
+    @Test
+    public void closeSkipsStableLayers() throws Exception {
+        IsolatedClassLoader stableClassLoader = 
+            StableClassLoaderCache.getClassLoader(
+                    ClassLoader.getSystemClassLoader(), 
+                    false, 
+                    Lists.newArrayList(getTestClassesUrl()));
+        
+        createCleaner(stableClassLoader).close();
+        
+        assertNotNull(stableClassLoader.findResource(STUB_DRIVER_RESOURCE));
+        
+        IsolatedClassLoader classLoader = 
+            new IsolatedClassLoader(ClassLoader.getSystemClassLoader());
+        classLoader.addURL(getTestClassesUrl());
+        assertNotNull(classLoader.findResource(STUB_DRIVER_RESOURCE));
+        
+        createCleaner(classLoader).close();
+        
+        assertNull(classLoader.findResource(STUB_DRIVER_RESOURCE));
+    }
+    
+    private IsolatedClassLoader createClassLoader() {
+        IsolatedClassLoader classLoader = 
+            new IsolatedClassLoader(ClassLoader.getSystemClassLoader());
+        classLoader.addURL(getTestClassesUrl());
+        
+        return classLoader;
+    }
+    
+    private Thread createHook(
+            ClassLoader classLoader, 
+            final AtomicBoolean hookRun) {
+        Thread hook = new Thread() {
+            @Override
+            public void run() {
+                hookRun.set(true);
+            }
+        };
+        hook.setContextClassLoader(classLoader);
+        
+        return hook;
+    }
+    
+    private Thread createApplicationThread(
+            ClassLoader classLoader, 
+            final CountDownLatch finish) {
+        Thread applicationThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        applicationThread.setContextClassLoader(classLoader);
+        
+        return applicationThread;
+    }
+    
+    private ClassLoaderCleaner createCleaner(ClassLoader classLoader) {
+        ClassLoaderCleaner cleaner = 
+            new ClassLoaderCleaner(
+                    classLoader, 
+                    ClassLoaderCleaner.getLiveThreads());
+        cleaner.setLogger(new SystemStreamLog());
+        
+        return cleaner;
+    }
+    
+    private URL getTestClassesUrl() {
+        return StubDriver.class.getProtectionDomain().getCodeSource().getLocation();
+    }
+}
@@ -0,0 +1,38 @@
+package org.atm.mvn.run;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Test;
+
+public class ClassLoaderLeakDiagnosticTest {
+
+    @Test
+    public void collectedClassLoader() {
+        ClassLoaderLeakDiagnostic leakDiagnostic = 
+            new ClassLoaderLeakDiagnostic(new SystemStreamLog());
+        
+        ClassLoader classLoader = 
+            new IsolatedClassLoader(ClassLoader.getSystemClassLoader());
+        leakDiagnostic.watch(classLoader);
+        classLoader = null;
+        
+        assertTrue(leakDiagnostic.report());
+    }
+    
+    @Test
+    public void leakedClassLoader() {
+        ClassLoaderLeakDiagnostic leakDiagnostic = 
+            new ClassLoaderLeakDiagnostic(new SystemStreamLog());
+        
+        ClassLoader classLoader = 
+            new IsolatedClassLoader(ClassLoader.getSystemClassLoader());
+        leakDiagnostic.watch(classLoader);
+        
+        assertFalse(leakDiagnostic.report());
+        
+        // still reachable up to here
+        assertTrue(classLoader != null);
+    }
+}
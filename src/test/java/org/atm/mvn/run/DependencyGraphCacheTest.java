@@ -0,0 +1,362 @@
+package org.atm.mvn.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.repository.internal.MavenRepositorySystemSession;
+import org.apache.maven.repository.internal.MavenServiceLocator;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.aether.RepositorySystem;
+import org.sonatype.aether.collection.CollectRequest;
+import org.sonatype.aether.graph.Dependency;
+import org.sonatype.aether.graph.DependencyNode;
+import org.sonatype.aether.impl.internal.SimpleLocalRepositoryManager;
+import org.sonatype.aether.repository.LocalRepository;
+import org.sonatype.aether.repository.RemoteRepository;
+import org.sonatype.aether.repository.RepositoryPolicy;
+import org.sonatype.aether.util.DefaultRepositorySystemSession;
+import org.sonatype.aether.util.artifact.ArtifactProperties;
+import org.sonatype.aether.util.artifact.DefaultArtifact;
+import org.sonatype.aether.util.graph.DefaultDependencyNode;
+
+public class DependencyGraphCacheTest {
+    
+    private File localRepository;
+    
+    private DependencyGraphCache dependencyGraphCache;
+    
+    @Before
+    public void setUp() throws Exception {
+        localRepository = File.createTempFile("repository", "");
+        localRepository.delete();
+        localRepository.mkdirs();
+        
+        DefaultRepositorySystemSession session = 
+            new DefaultRepositorySystemSession();
+        session.setLocalRepositoryManager(
+                new SimpleLocalRepositoryManager(localRepository));
+        
+        dependencyGraphCache = 
+            new DependencyGraphCache(
+                    new File(localRepository, "graphs"), 
+                    session);
+        dependencyGraphCache.setLogger(new SystemStreamLog());
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(localRepository);
+    }
+
+    @Test
+    public void storeAndLoad() {
+        CollectRequest collectRequest = createCollectRequest("1.0");
+        
+        assertNull(dependencyGraphCache.load(collectRequest, "runtime"));
+        
+        dependencyGraphCache.store(
+                collectRequest, 
+                "runtime", 
+                createGraph(collectRequest), 
+                Collections.<File>emptyList());
+        
+        DependencyNode root = 
+            dependencyGraphCache.load(collectRequest, "runtime");
+        assertNotNull(root);
+        assertEquals("org.example:tool:jar:1.0", 
+                root.getDependency().getArtifact().toString());
+        assertEquals(1, root.getChildren().size());
+        assertEquals("org.example:lib:jar:2.0", 
+                root.getChildren().get(0)
+                    .getDependency().getArtifact().toString());
+        
+        // the repositories declared in the POMs are kept for downloads
+        RemoteRepository repository = 
+            root.getChildren().get(0).getRepositories().get(0);
+        assertEquals("example", repository.getId());
+        assertEquals("http://repo.example.org/", repository.getUrl());
+        assertEquals(
+                RepositoryPolicy.UPDATE_POLICY_NEVER, 
+                repository.getPolicy(false).getUpdatePolicy());
+        assertFalse(repository.getPolicy(true).isEnabled());
+        
+        assertNull(dependencyGraphCache.load(collectRequest, "compile"));
+    }
+    
+    @Test
+    public void snapshotInvalidation() throws Exception {
+        CollectRequest collectRequest = createCollectRequest("1.0-SNAPSHOT");
+        
+        File pomFile = 
+            new File(localRepository, 
+                    "org/example/tool/1.0-SNAPSHOT/tool-1.0-SNAPSHOT.pom");
+        pomFile.getParentFile().mkdirs();
+        FileUtils.fileWrite(pomFile, "<project/>");
+        pomFile.setLastModified(100000);
+        
+        dependencyGraphCache.store(
+                collectRequest, 
+                "runtime", 
+                createGraph(collectRequest), 
+                Collections.<File>emptyList());
+        
+        assertNotNull(dependencyGraphCache.load(collectRequest, "runtime"));
+        
+        pomFile.setLastModified(200000);
+        
+        assertNull(dependencyGraphCache.load(collectRequest, "runtime"));
+    }
+    
+    @Test
+    public void snapshotMetadataInvalidation() throws Exception {
+        CollectRequest collectRequest = createCollectRequest("1.0-SNAPSHOT");
+        
+        File metadataFile = 
+            new File(localRepository, 
+                    "org/example/tool/1.0-SNAPSHOT/maven-metadata-central.xml");
+        metadataFile.getParentFile().mkdirs();
+        FileUtils.fileWrite(metadataFile, "<metadata/>");
+        metadataFile.setLastModified(100000);
+        
+        dependencyGraphCache.store(
+                collectRequest, 
+                "runtime", 
+                createGraph(collectRequest), 
+                Collections.<File>emptyList());
+        
+        assertNotNull(dependencyGraphCache.load(collectRequest, "runtime"));
+        
+        // resolving the graph found a newer SNAPSHOT in the remote repository
+        metadataFile.setLastModified(200000);
+        
+        assertNull(dependencyGraphCache.load(collectRequest, "runtime"));
+    }
+    
+    @Test
+    public void parentPomInvalidation() throws Exception {
+        CollectRequest collectRequest = createCollectRequest("1.0");
+        
+        File parentPomFile = 
+            new File(localRepository, 
+                    "org/example/parent/1-SNAPSHOT/parent-1-SNAPSHOT.pom");
+        parentPomFile.getParentFile().mkdirs();
+        FileUtils.fileWrite(parentPomFile, "<project/>");
+        parentPomFile.setLastModified(100000);
+        
+        dependencyGraphCache.store(
+                collectRequest, 
+                "runtime", 
+                createGraph(collectRequest), 
+                Collections.singleton(parentPomFile));
+        
+        assertNotNull(dependencyGraphCache.load(collectRequest, "runtime"));
+        
+        parentPomFile.setLastModified(200000);
+        
+        assertNull(dependencyGraphCache.load(collectRequest, "runtime"));
+    }
+    
+    @Test
+    public void collectRecordsParentPom() throws Exception {
+        writePom("parent", "1.0", 
+                "<packaging>pom</packaging>" + 
+                "<dependencies><dependency>" + 
+                "<groupId>org.example</groupId>" + 
+                "<artifactId>lib</artifactId>" + 
+                "<version>2.0</version>" + 
+                "</dependency></dependencies>");
+        File toolPomFile = writePom("tool", "1.0", 
+                "<parent>" + 
+                "<groupId>org.example</groupId>" + 
+                "<artifactId>parent</artifactId>" + 
+                "<version>1.0</version>" + 
+                "</parent>");
+        writePom("lib", "2.0", "");
+        
+        final RepositorySystem repositorySystem = 
+            new MavenServiceLocator().getService(RepositorySystem.class);
+        
+        final AtomicInteger collections = new AtomicInteger();
+        RepositorySystem countingRepositorySystem = (RepositorySystem) 
+            Proxy.newProxyInstance(
+                    getClass().getClassLoader(), 
+                    new Class<?>[] { RepositorySystem.class }, 
+                    new InvocationHandler() {
+                        public Object invoke(
+                                Object proxy, 
+                                Method method, 
+                                Object[] args) 
+                                throws Throwable {
+                            if (method.getName().equals("collectDependencies")) {
+                                collections.incrementAndGet();
+                            }
+                            
+                            try {
+                                return method.invoke(repositorySystem, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        
+        MavenRepositorySystemSession session = 
+            new MavenRepositorySystemSession();
+        session.setLocalRepositoryManager(
+                repositorySystem.newLocalRepositoryManager(
+                        new LocalRepository(localRepository)));
+        
+        DependencyGraphCache collectingCache = 
+            new DependencyGraphCache(
+                    new File(localRepository, "graphs"), 
+                    session);
+        collectingCache.setLogger(new SystemStreamLog());
+        
+        CollectRequest collectRequest = createCollectRequest("1.0");
+        
+        DependencyNode root = 
+            collectingCache.collect(
+                    countingRepositorySystem, 
+                    collectRequest, 
+                    "runtime");
+        assertEquals(1, collections.get());
+        assertEquals("org.example:lib:jar:2.0", 
+                root.getChildren().get(0)
+                    .getDependency().getArtifact().toString());
+        
+        collectingCache.collect(
+                countingRepositorySystem, 
+                collectRequest, 
+                "runtime");
+        assertEquals(1, collections.get());
+        
+        // the parent POM declares the dependency, so changing it invalidates
+        // the graph
+        File parentPomFile = 
+            new File(localRepository, "org/example/parent/1.0/parent-1.0.pom");
+        parentPomFile.setLastModified(toolPomFile.lastModified() - 60000);
+        
+        assertNull(collectingCache.load(collectRequest, "runtime"));
+        
+        collectingCache.collect(
+                countingRepositorySystem, 
+                collectRequest, 
+                "runtime");
+        assertEquals(2, collections.get());
+    }
+    
+    @Test
+    public void artifactPropertiesAreKept() {
+        CollectRequest collectRequest = createCollectRequest("1.0");
+        
+        DefaultDependencyNode root = 
+            new DefaultDependencyNode(collectRequest.getRoot());
+        root.getChildren().add(
+                new DefaultDependencyNode(
+                        new Dependency(
+                                new DefaultArtifact(
+                                        "org.example", 
+                                        "system", 
+                                        "", 
+                                        "jar", 
+                                        "1.0", 
+                                        Collections.singletonMap(
+                                                ArtifactProperties.LOCAL_PATH, 
+                                                "/opt/system.jar"), 
+                                        (File) null), 
+                                "system")));
+        
+        dependencyGraphCache.store(
+                collectRequest, 
+                "runtime", 
+                root, 
+                Collections.<File>emptyList());
+        
+        DependencyNode child = 
+            dependencyGraphCache.load(collectRequest, "runtime")
+                .getChildren().get(0);
+        assertEquals("/opt/system.jar", 
+                child.getDependency().getArtifact().getProperty(
+                        ArtifactProperties.LOCAL_PATH, null));
+    }
+    
+    @Test
+    public void metaVersionsAreNotCacheable() {
+        assertFalse(DependencyGraphCache.isCacheable(
+                new DefaultArtifact("org.example:tool:LATEST")));
+        assertFalse(DependencyGraphCache.isCacheable(
+                new DefaultArtifact("org.example:tool:[1.0,2.0)")));
+        assertTrue(DependencyGraphCache.isCacheable(
+                new DefaultArtifact("org.example:tool:1.0-SNAPSHOT")));
+    }
+    
+    private CollectRequest createCollectRequest(String version) {
+        CollectRequest collectRequest = new CollectRequest();
+        collectRequest.setRoot(
+                new Dependency(
+                        new DefaultArtifact("org.example:tool:" + version), 
+                        null));
+        
+        return collectRequest;
+    }
+    
+    private DependencyNode createGraph(CollectRequest collectRequest) {
+        DefaultDependencyNode root = 
+            new DefaultDependencyNode(collectRequest.getRoot());
+        
+        DefaultDependencyNode child = 
+            new DefaultDependencyNode(
+                    new Dependency(
+                            new DefaultArtifact("org.example:lib:2.0"), 
+                            "runtime"));
+        child.setRepositories(Collections.singletonList(
+                new RemoteRepository(
+                        "example", 
+                        "default", 
+                        "http://repo.example.org/")
+                    .setPolicy(false, new RepositoryPolicy(
+                            true, 
+                            RepositoryPolicy.UPDATE_POLICY_NEVER, 
+                            RepositoryPolicy.CHECKSUM_POLICY_WARN))
+                    .setPolicy(true, new RepositoryPolicy(
+                            false, 
+                            RepositoryPolicy.UPDATE_POLICY_DAILY, 
+                            RepositoryPolicy.CHECKSUM_POLICY_WARN))));
+        root.getChildren().add(child);
+        
+        return root;
+    }
+    
+    private File writePom(String artifactId, String version, String contents) 
+            throws Exception {
+        File pomFile = 
+            new File(localRepository, 
+                    "org/example/" + artifactId + "/" + version + "/" + 
+                    artifactId + "-" + version + ".pom");
+        pomFile.getParentFile().mkdirs();
+        FileUtils.fileWrite(pomFile, 
+                "<project>" + 
+                "<modelVersion>4.0.0</modelVersion>" + 
+                "<groupId>org.example</groupId>" + 
+                "<artifactId>" + artifactId + "</artifactId>" + 
+                "<version>" + version + "</version>" + 
+                contents + 
+                "</project>");
+        
+        return pomFile;
+    }
+}
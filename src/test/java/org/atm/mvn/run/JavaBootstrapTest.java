@@ -0,0 +1,218 @@
+package org.atm.mvn.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class JavaBootstrapTest {
+    
+    private File repository;
+    
+    @Before
+    public void setUp() throws Exception {
+        repository = File.createTempFile("repository", "");
+        repository.delete();
+        repository.mkdirs();
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(repository);
+    }
+
+    @Test
+    public void volatileClassPathUrls() throws Exception {
+        JavaBootstrap bootstrap = createBootstrap(Lists.<URL>newArrayList());
+        
+        assertTrue(bootstrap.isVolatileClassPathUrl(
+                new URL("file:/project/target/classes/")));
+        assertTrue(bootstrap.isVolatileClassPathUrl(
+                new URL("file:/repo/tool-1.0-SNAPSHOT.jar")));
+        assertTrue(bootstrap.isVolatileClassPathUrl(
+                new URL("file:/repo/tool-1.0-20120101.123456-3.jar")));
+        assertFalse(bootstrap.isVolatileClassPathUrl(
+                new URL("file:/repo/SNAPSHOT/lib-1.0.jar")));
+        assertFalse(bootstrap.isVolatileClassPathUrl(
+                new URL("file:/repo/lib-1.0.jar")));
+    }
+    
+    @Test
+    public void layeredClassLoaderSharesStableLayer() throws Exception {
+        List<URL> classPathUrls = Lists.newArrayList(
+                new URL("file:/repo/lib-1.0.jar"),
+                new URL("file:/repo/tool-1.0-SNAPSHOT.jar"));
+        
+        JavaBootstrap bootstrap = createBootstrap(classPathUrls);
+        bootstrap.setLayeredClassLoader(true);
+        
+        ClassLoader systemClassLoader = ClassLoader.getSystemClassLoader();
+        
+        IsolatedClassLoader first = (IsolatedClassLoader) 
+            bootstrap.createClassLoader(systemClassLoader, false);
+        IsolatedClassLoader second = (IsolatedClassLoader) 
+            bootstrap.createClassLoader(systemClassLoader, false);
+        
+        assertNotSame(first, second);
+        assertSame(first.getParent(), second.getParent());
+        assertTrue(StableClassLoaderCache.isCached(first.getParent()));
+        
+        assertEquals(1, first.getURLs().length);
+        assertTrue(first.getURLs()[0].getPath().endsWith("SNAPSHOT.jar"));
+    }
+    
+    @Test
+    public void dependentClassPathUrlsAreVolatile() throws Exception {
+        URL dependentUrl = new URL("file:/repo/framework-1.0.jar");
+        
+        JavaBootstrap bootstrap = createBootstrap(Lists.<URL>newArrayList());
+        bootstrap.setDependentClassPathUrls(Lists.newArrayList(dependentUrl));
+        
+        assertTrue(bootstrap.isVolatileClassPathUrl(dependentUrl));
+        assertFalse(bootstrap.isVolatileClassPathUrl(
+                new URL("file:/repo/lib-1.0.jar")));
+    }
+    
+    @Test
+    public void stableLayersAreBounded() throws Exception {
+        ClassLoader systemClassLoader = ClassLoader.getSystemClassLoader();
+        
+        IsolatedClassLoader eldest = 
+            StableClassLoaderCache.getClassLoader(
+                    systemClassLoader, 
+                    false, 
+                    Lists.newArrayList(new URL("file:/repo/eldest-1.0.jar")));
+        
+        for (int i = 0; i < StableClassLoaderCache.MAX_CLASS_LOADERS; i++) {
+            StableClassLoaderCache.getClassLoader(
+                    systemClassLoader, 
+                    false, 
+                    Lists.newArrayList(new URL("file:/repo/lib-" + i + ".jar")));
+        }
+        
+        assertFalse(StableClassLoaderCache.isCached(eldest));
+    }
+    
+    @Test
+    public void volatileClassesLoadThroughStableLayer() throws Exception {
+        File libraryJar = createJar("stub-library-1.0.jar", StubLibrary.class);
+        File applicationClasses = createDirectory(StubApplication.class);
+        
+        JavaBootstrap bootstrap = 
+            createBootstrap(Lists.newArrayList(
+                    applicationClasses.toURI().toURL(), 
+                    libraryJar.toURI().toURL()));
+        bootstrap.setLayeredClassLoader(true);
+        
+        ClassLoader classLoader = 
+            bootstrap.createClassLoader(ClassLoader.getSystemClassLoader(), true);
+        
+        Class<?> applicationClass = 
+            classLoader.loadClass(StubApplication.class.getName());
+        assertSame(classLoader, applicationClass.getClassLoader());
+        
+        Class<?> libraryClass = (Class<?>) 
+            applicationClass.getMethod("getLibraryClass").invoke(null);
+        assertSame(classLoader.getParent(), libraryClass.getClassLoader());
+        assertTrue(StableClassLoaderCache.isCached(libraryClass.getClassLoader()));
+        
+        assertEquals("Hello application", 
+                applicationClass.getMethod("greet").invoke(null));
+    }
+    
+    @Test
+    public void evictedLayersStayOpenWhileUsed() throws Exception {
+        File libraryJar = createJar("stub-library-2.0.jar", StubLibrary.class);
+        
+        JavaBootstrap bootstrap = 
+            createBootstrap(Lists.newArrayList(libraryJar.toURI().toURL()));
+        bootstrap.setLayeredClassLoader(true);
+        
+        ClassLoader child = 
+            bootstrap.createClassLoader(ClassLoader.getSystemClassLoader(), true);
+        IsolatedClassLoader layer = (IsolatedClassLoader) child.getParent();
+        
+        for (int i = 0; i < StableClassLoaderCache.MAX_CLASS_LOADERS; i++) {
+            StableClassLoaderCache.getClassLoader(
+                    ClassLoader.getSystemClassLoader(), 
+                    true, 
+                    Lists.newArrayList(new URL("file:/repo/evicting-" + i + ".jar")));
+        }
+        
+        // evicted, but still open for the child
+        assertNotNull(layer.findResource(getClassFileName(StubLibrary.class)));
+        
+        StableClassLoaderCache.removeChild(child);
+        
+        assertFalse(StableClassLoaderCache.isCached(layer));
+        assertNull(layer.findResource(getClassFileName(StubLibrary.class)));
+    }
+    
+    private File createJar(String fileName, Class<?> entryClass) 
+            throws Exception {
+        File jar = new File(repository, fileName);
+        
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new JarEntry(getClassFileName(entryClass)));
+            out.write(getClassFileBytes(entryClass));
+            out.closeEntry();
+        } finally {
+            IOUtil.close(out);
+        }
+        
+        return jar;
+    }
+    
+    private File createDirectory(Class<?> entryClass) throws Exception {
+        File directory = new File(repository, "classes");
+        
+        File classFile = new File(directory, getClassFileName(entryClass));
+        classFile.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(classFile);
+        try {
+            out.write(getClassFileBytes(entryClass));
+        } finally {
+            IOUtil.close(out);
+        }
+        
+        return directory;
+    }
+    
+    private String getClassFileName(Class<?> entryClass) {
+        return entryClass.getName().replace('.', '/') + ".class";
+    }
+    
+    private byte[] getClassFileBytes(Class<?> entryClass) throws Exception {
+        return IOUtil.toByteArray(
+                entryClass.getResourceAsStream(
+                        entryClass.getSimpleName() + ".class"));
+    }
+    
+    private JavaBootstrap createBootstrap(List<URL> classPathUrls) {
+        JavaBootstrap bootstrap = 
+            new JavaBootstrap(classPathUrls, "Main", new String[0]);
+        bootstrap.setLogger(new SystemStreamLog());
+        
+        return bootstrap;
+    }
+}
@@ -0,0 +1,69 @@
+package org.atm.mvn.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URL;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.junit.Test;
+import org.sonatype.aether.graph.Dependency;
+import org.sonatype.aether.graph.DependencyNode;
+import org.sonatype.aether.util.artifact.DefaultArtifact;
+import org.sonatype.aether.util.graph.DefaultDependencyNode;
+
+import com.google.common.collect.Lists;
+
+public class JavaMojoTest {
+
+    @Test
+    public void findDependentArtifacts() throws Exception {
+        DefaultDependencyNode root = createNode("org.example:tool:1.0");
+        DefaultDependencyNode framework = 
+            createNode("org.example:framework:1.0");
+        DefaultDependencyNode plugin = createNode("org.example:plugin:1.0");
+        DefaultDependencyNode snapshot = 
+            createNode("org.example:lib:1.1-SNAPSHOT");
+        DefaultDependencyNode release = createNode("org.example:util:1.0");
+        
+        // tool -> framework -> plugin -> lib-SNAPSHOT, and tool -> util
+        root.getChildren().add(framework);
+        root.getChildren().add(release);
+        framework.getChildren().add(plugin);
+        plugin.getChildren().add(snapshot);
+        // a cycle back to the framework must not hide its volatility
+        plugin.getChildren().add(framework);
+        
+        List<URL> dependentClassPathUrls = Lists.newArrayList();
+        
+        assertTrue(JavaMojo.findDependentArtifacts(
+                root, 
+                new IdentityHashMap<DependencyNode, Boolean>(), 
+                dependentClassPathUrls));
+        
+        assertEquals(
+                Lists.newArrayList(
+                        getUrl(plugin), 
+                        getUrl(framework), 
+                        getUrl(root)), 
+                dependentClassPathUrls);
+    }
+    
+    private DefaultDependencyNode createNode(String coordinates) {
+        DefaultArtifact artifact = new DefaultArtifact(coordinates);
+        
+        return new DefaultDependencyNode(
+                new Dependency(
+                        artifact.setFile(
+                                new File("/repo/" + 
+                                        artifact.getArtifactId() + "-" + 
+                                        artifact.getVersion() + ".jar")), 
+                        "runtime"));
+    }
+    
+    private URL getUrl(DependencyNode node) throws Exception {
+        return node.getDependency().getArtifact().getFile().toURI().toURL();
+    }
+}
@@ -0,0 +1,160 @@
+package org.atm.mvn.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class OutputPipelineTest {
+
+    @Test
+    public void writeToFile() throws Exception {
+        File outputFile = File.createTempFile("output", ".txt");
+        outputFile.deleteOnExit();
+        
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        
+        OutputPipeline outputPipeline = new OutputPipeline(4);
+        outputPipeline.setLogger(new SystemStreamLog());
+        outputPipeline.setOutputFile(outputFile);
+        
+        outputPipeline.start();
+        try {
+            for (int i = 0; i < 100; i++) {
+                System.out.print("out");
+                System.err.print("err");
+            }
+        } finally {
+            outputPipeline.stop();
+        }
+        
+        assertSame(out, System.out);
+        assertSame(err, System.err);
+        
+        assertEquals(0, outputPipeline.getDroppedBytes());
+        assertEquals(600, FileUtils.fileRead(outputFile).length());
+    }
+    
+    @Test
+    public void stopWithoutStart() {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        
+        OutputPipeline outputPipeline = new OutputPipeline(4);
+        outputPipeline.setLogger(new SystemStreamLog());
+        outputPipeline.stop();
+        
+        assertSame(out, System.out);
+        assertSame(err, System.err);
+    }
+    
+    @Test
+    public void writeToConsole() throws Exception {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        ByteArrayOutputStream errorConsole = new ByteArrayOutputStream();
+        
+        System.setOut(new PrintStream(console, true));
+        System.setErr(new PrintStream(errorConsole, true));
+        try {
+            OutputPipeline outputPipeline = new OutputPipeline(4);
+            outputPipeline.setLogger(new SystemStreamLog());
+            
+            outputPipeline.start();
+            try {
+                for (int i = 0; i < 100; i++) {
+                    System.out.print("out");
+                    System.err.print("err");
+                }
+            } finally {
+                outputPipeline.stop();
+            }
+            
+            // written after stopping, straight to the console
+            System.out.print("after");
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+        
+        StringBuilder expectedOut = new StringBuilder();
+        StringBuilder expectedErr = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            expectedOut.append("out");
+            expectedErr.append("err");
+        }
+        expectedOut.append("after");
+        
+        assertEquals(expectedOut.toString(), console.toString());
+        assertEquals(expectedErr.toString(), errorConsole.toString());
+    }
+    
+    @Test
+    public void dropWhenFull() throws Exception {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        
+        final CountDownLatch consoleReady = new CountDownLatch(1);
+        final ByteArrayOutputStream console = new ByteArrayOutputStream();
+        final List<CharSequence> warnings = Lists.newArrayList();
+        
+        // a console that blocks until released
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    consoleReady.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                
+                console.write(b);
+            }
+        }));
+        try {
+            OutputPipeline outputPipeline = new OutputPipeline(1);
+            outputPipeline.setLogger(new SystemStreamLog() {
+                @Override
+                public void warn(CharSequence content) {
+                    warnings.add(content);
+                }
+            });
+            outputPipeline.setBackpressure(OutputBackpressure.DROP);
+            
+            outputPipeline.start();
+            try {
+                // the writer thread blocks on the first chunk at the latest
+                System.out.print("a");
+                System.out.print("b");
+                System.out.print("c");
+            } finally {
+                consoleReady.countDown();
+                outputPipeline.stop();
+            }
+            
+            assertTrue(outputPipeline.getDroppedBytes() > 0);
+            assertEquals(3, outputPipeline.getDroppedBytes() + console.size());
+            assertTrue(console.toString().startsWith("a"));
+            assertEquals(1, warnings.size());
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+}
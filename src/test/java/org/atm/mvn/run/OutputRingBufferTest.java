@@ -0,0 +1,76 @@
+package org.atm.mvn.run;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class OutputRingBufferTest {
+
+    @Test
+    public void boundedFirstInFirstOut() {
+        OutputRingBuffer ringBuffer = new OutputRingBuffer(2);
+        
+        assertTrue(ringBuffer.isEmpty());
+        assertNull(ringBuffer.poll());
+        
+        assertTrue(ringBuffer.offer(new byte[] { 1 }));
+        assertTrue(ringBuffer.offer(new byte[] { 2 }));
+        assertFalse(ringBuffer.offer(new byte[] { 3 }));
+        
+        assertArrayEquals(new byte[] { 1 }, ringBuffer.poll());
+        assertTrue(ringBuffer.offer(new byte[] { 3 }));
+        assertArrayEquals(new byte[] { 2 }, ringBuffer.poll());
+        assertArrayEquals(new byte[] { 3 }, ringBuffer.poll());
+        
+        assertTrue(ringBuffer.isEmpty());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        new OutputRingBuffer(0);
+    }
+    
+    @Test
+    public void concurrentWriters() throws Exception {
+        final OutputRingBuffer ringBuffer = new OutputRingBuffer(64);
+        final int writesPerThread = 1000;
+        
+        List<Thread> writers = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < writesPerThread; j++) {
+                        while (!ringBuffer.offer(new byte[] { 1 })) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            writer.start();
+            writers.add(writer);
+        }
+        
+        int chunks = 0;
+        while (chunks < writers.size() * writesPerThread) {
+            if (ringBuffer.poll() != null) {
+                chunks++;
+            }
+        }
+        
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        
+        assertEquals(writers.size() * writesPerThread, chunks);
+        assertTrue(ringBuffer.isEmpty());
+    }
+}
@@ -0,0 +1,16 @@
+package org.atm.mvn.run;
+
+/**
+ * An application class using {@link StubLibrary}, used to test class loading
+ * from the volatile class loader layer.
+ */
+public class StubApplication {
+    
+    public static Class<?> getLibraryClass() {
+        return StubLibrary.class;
+    }
+    
+    public static String greet() {
+        return StubLibrary.greet("application");
+    }
+}
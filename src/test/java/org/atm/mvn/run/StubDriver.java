@@ -0,0 +1,70 @@
+package org.atm.mvn.run;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * A JDBC driver that registers itself when loaded, used to test driver
+ * deregistration from an isolated class loader.
+ */
+public class StubDriver implements Driver {
+    
+    static {
+        try {
+            DriverManager.registerDriver(new StubDriver());
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * @return true if this driver is registered. DriverManager only lists
+     *         drivers visible to the caller, so this must be called on the
+     *         class loaded by the isolated class loader.
+     */
+    public static boolean isRegistered() {
+        Enumeration<Driver> drivers = DriverManager.getDrivers();
+        while (drivers.hasMoreElements()) {
+            if (drivers.nextElement() instanceof StubDriver) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+
+    public Connection connect(String url, Properties info) {
+        return null;
+    }
+
+    public boolean acceptsURL(String url) {
+        return false;
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+}
@@ -0,0 +1,12 @@
+package org.atm.mvn.run;
+
+/**
+ * A release library class, used to test class loading through the stable
+ * class loader layer.
+ */
+public class StubLibrary {
+    
+    public static String greet(String name) {
+        return "Hello " + name;
+    }
+}
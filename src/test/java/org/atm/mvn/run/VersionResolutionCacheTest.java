@@ -0,0 +1,343 @@
+package org.atm.mvn.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.repository.internal.MavenRepositorySystemSession;
+import org.apache.maven.repository.internal.MavenServiceLocator;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.aether.RepositorySystem;
+import org.sonatype.aether.connector.file.FileRepositoryConnectorFactory;
+import org.sonatype.aether.repository.LocalRepository;
+import org.sonatype.aether.repository.RemoteRepository;
+import org.sonatype.aether.repository.RepositoryPolicy;
+import org.sonatype.aether.spi.connector.RepositoryConnectorFactory;
+import org.sonatype.aether.util.artifact.DefaultArtifact;
+
+public class VersionResolutionCacheTest {
+    
+    private static final List<RemoteRepository> NO_REPOSITORIES = 
+        Collections.emptyList();
+    
+    private File localRepository;
+    
+    private File remoteRepository;
+    
+    private AtomicInteger resolutions = new AtomicInteger();
+    
+    private Future<?> refresh;
+    
+    private boolean deferRefreshes = false;
+    
+    private FutureTask<Object> deferredRefresh;
+    
+    private VersionResolutionCache versionResolutionCache;
+    
+    @Before
+    public void setUp() throws Exception {
+        localRepository = File.createTempFile("repository", "");
+        localRepository.delete();
+        localRepository.mkdirs();
+        
+        remoteRepository = new File(localRepository, "remote");
+        
+        MavenServiceLocator serviceLocator = new MavenServiceLocator();
+        serviceLocator.addService(
+                RepositoryConnectorFactory.class, 
+                FileRepositoryConnectorFactory.class);
+        final RepositorySystem repositorySystem = 
+            serviceLocator.getService(RepositorySystem.class);
+        
+        // count the version lookups that reach the stand-in repository
+        RepositorySystem countingRepositorySystem = (RepositorySystem) 
+            Proxy.newProxyInstance(
+                    getClass().getClassLoader(), 
+                    new Class<?>[] { RepositorySystem.class }, 
+                    new InvocationHandler() {
+                        public Object invoke(
+                                Object proxy, 
+                                Method method, 
+                                Object[] args) 
+                                throws Throwable {
+                            if (method.getName().startsWith("resolveVersion")) {
+                                resolutions.incrementAndGet();
+                            }
+                            
+                            try {
+                                return method.invoke(repositorySystem, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        
+        MavenRepositorySystemSession session = 
+            new MavenRepositorySystemSession();
+        session.setLocalRepositoryManager(
+                repositorySystem.newLocalRepositoryManager(
+                        new LocalRepository(localRepository)));
+        // let refreshes see new remote metadata right away
+        session.setUpdatePolicy(RepositoryPolicy.UPDATE_POLICY_ALWAYS);
+        
+        versionResolutionCache = 
+            new VersionResolutionCache(
+                    new File(localRepository, "versions"), 
+                    countingRepositorySystem, 
+                    session) {
+                @Override
+                protected Future<?> refresh(Runnable refreshTask) {
+                    if (deferRefreshes) {
+                        deferredRefresh = 
+                            new FutureTask<Object>(refreshTask, null);
+                        refresh = deferredRefresh;
+                    } else {
+                        refresh = super.refresh(refreshTask);
+                    }
+                    return refresh;
+                }
+            };
+        versionResolutionCache.setLogger(new SystemStreamLog());
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(localRepository);
+    }
+
+    @Test
+    public void cachedLatestVersion() throws Exception {
+        publish("1.0", "1.0");
+        
+        assertEquals("1.0", resolveVersion("LATEST"));
+        assertEquals(1, resolutions.get());
+        
+        // a new release does not reach launches within the time to live
+        publish("1.0", "2.0");
+        
+        assertEquals("1.0", resolveVersion("LATEST"));
+        assertEquals(1, resolutions.get());
+        assertNull(refresh);
+        
+        // once expired, the cached version is used while refreshing
+        versionResolutionCache.setTimeToLive(0);
+        
+        assertEquals("1.0", resolveVersion("LATEST"));
+        refresh.get();
+        assertEquals(2, resolutions.get());
+        
+        versionResolutionCache.setTimeToLive(60000);
+        
+        assertEquals("2.0", resolveVersion("LATEST"));
+        assertEquals(2, resolutions.get());
+    }
+    
+    @Test
+    public void awaitRefreshes() throws Exception {
+        publish("1.0");
+        
+        assertEquals("1.0", resolveVersion("LATEST"));
+        
+        publish("1.0", "2.0");
+        versionResolutionCache.setTimeToLive(0);
+        
+        assertEquals("1.0", resolveVersion("LATEST"));
+        versionResolutionCache.awaitRefreshes(60000);
+        assertTrue(refresh.isDone());
+        
+        versionResolutionCache.setTimeToLive(60000);
+        
+        assertEquals("2.0", resolveVersion("LATEST"));
+    }
+    
+    @Test
+    public void invalidResolvedTimeIsAMiss() throws Exception {
+        publish("1.0");
+        
+        assertEquals("1.0", resolveVersion("LATEST"));
+        assertEquals(1, resolutions.get());
+        
+        File[] cacheFiles = new File(localRepository, "versions").listFiles();
+        assertEquals(1, cacheFiles.length);
+        
+        String contents = FileUtils.fileRead(cacheFiles[0]);
+        FileUtils.fileWrite(
+                cacheFiles[0].getPath(), 
+                contents.replaceAll("resolved=\\d+", "resolved=garbage"));
+        
+        assertEquals("1.0", resolveVersion("LATEST"));
+        assertEquals(2, resolutions.get());
+    }
+    
+    @Test
+    public void unstartedRefreshesAreCancelled() throws Exception {
+        publish("1.0");
+        
+        assertEquals("1.0", resolveVersion("LATEST"));
+        
+        deferRefreshes = true;
+        versionResolutionCache.setTimeToLive(0);
+        
+        assertEquals("1.0", resolveVersion("LATEST"));
+        versionResolutionCache.awaitRefreshes(0);
+        assertTrue(deferredRefresh.isCancelled());
+        
+        // running it late does not touch the repositories
+        deferredRefresh.run();
+        assertEquals(1, resolutions.get());
+        
+        // and the version can be refreshed again
+        FutureTask<Object> cancelledRefresh = deferredRefresh;
+        assertEquals("1.0", resolveVersion("LATEST"));
+        assertNotSame(cancelledRefresh, deferredRefresh);
+        
+        deferredRefresh.run();
+        assertEquals(2, resolutions.get());
+    }
+    
+    @Test
+    public void cachedRemoteLatestVersion() throws Exception {
+        List<RemoteRepository> repositories = 
+            Collections.singletonList(
+                    new RemoteRepository(
+                            "stand-in", 
+                            "default", 
+                            remoteRepository.toURI().toString()));
+        
+        publishRemote("maven-metadata.xml", createMetadata("1.0"));
+        
+        assertEquals("1.0", resolveVersion("LATEST", repositories));
+        assertEquals("1.0", resolveVersion("LATEST", repositories));
+        assertEquals(1, resolutions.get());
+        
+        publishRemote("maven-metadata.xml", createMetadata("1.0", "2.0"));
+        versionResolutionCache.setTimeToLive(0);
+        
+        assertEquals("1.0", resolveVersion("LATEST", repositories));
+        versionResolutionCache.awaitRefreshes(60000);
+        assertEquals(2, resolutions.get());
+        
+        versionResolutionCache.setTimeToLive(60000);
+        
+        assertEquals("2.0", resolveVersion("LATEST", repositories));
+        assertEquals(2, resolutions.get());
+        
+        // the repositories are part of the cache key
+        publish("3.0");
+        
+        assertEquals("3.0", resolveVersion("LATEST"));
+        assertEquals(3, resolutions.get());
+    }
+    
+    @Test
+    public void cachedSnapshotVersion() throws Exception {
+        List<RemoteRepository> repositories = 
+            Collections.singletonList(
+                    new RemoteRepository(
+                            "stand-in", 
+                            "default", 
+                            remoteRepository.toURI().toString()));
+        
+        publishRemote("1.0-SNAPSHOT/maven-metadata.xml", 
+                "<metadata>" + 
+                "<groupId>org.example</groupId>" + 
+                "<artifactId>tool</artifactId>" + 
+                "<version>1.0-SNAPSHOT</version>" + 
+                "<versioning><snapshot>" + 
+                "<timestamp>20120101.123456</timestamp>" + 
+                "<buildNumber>3</buildNumber>" + 
+                "</snapshot></versioning>" + 
+                "</metadata>");
+        
+        assertEquals("1.0-20120101.123456-3", 
+                resolveVersion("1.0-SNAPSHOT", repositories));
+        assertEquals("1.0-20120101.123456-3", 
+                resolveVersion("1.0-SNAPSHOT", repositories));
+        assertEquals(1, resolutions.get());
+    }
+    
+    @Test
+    public void cachedVersionRange() throws Exception {
+        publish("1.0", "1.5", "3.0");
+        
+        assertEquals("1.5", resolveVersion("[1.0,2.0)"));
+        assertEquals("1.5", resolveVersion("[1.0,2.0)"));
+        assertEquals(1, resolutions.get());
+        
+        assertEquals("1.0", resolveVersion("1.0"));
+        assertEquals(1, resolutions.get());
+    }
+    
+    private String resolveVersion(String version) throws Exception {
+        return resolveVersion(version, NO_REPOSITORIES);
+    }
+    
+    private String resolveVersion(
+            String version, 
+            List<RemoteRepository> repositories) 
+            throws Exception {
+        return versionResolutionCache.resolve(
+                    new DefaultArtifact("org.example:tool:" + version), 
+                    repositories)
+                .getVersion();
+    }
+    
+    /**
+     * Write the local repository metadata listing the given versions, the
+     * last one being the latest.
+     */
+    private void publish(String... versions) throws Exception {
+        File metadataFile = 
+            new File(localRepository, 
+                    "org/example/tool/maven-metadata-local.xml");
+        metadataFile.getParentFile().mkdirs();
+        FileUtils.fileWrite(metadataFile, createMetadata(versions));
+    }
+    
+    /**
+     * Write metadata into the remote repository stand-in.
+     */
+    private void publishRemote(String path, String metadata) throws Exception {
+        File metadataFile = 
+            new File(remoteRepository, "org/example/tool/" + path);
+        metadataFile.getParentFile().mkdirs();
+        FileUtils.fileWrite(metadataFile, metadata);
+    }
+    
+    private String createMetadata(String... versions) {
+        String latest = versions[versions.length - 1];
+        
+        StringBuilder metadata = new StringBuilder();
+        metadata.append("<metadata>");
+        metadata.append("<groupId>org.example</groupId>");
+        metadata.append("<artifactId>tool</artifactId>");
+        metadata.append("<versioning>");
+        metadata.append("<latest>").append(latest).append("</latest>");
+        metadata.append("<release>").append(latest).append("</release>");
+        metadata.append("<versions>");
+        for (String version : versions) {
+            metadata.append("<version>").append(version).append("</version>");
+        }
+        metadata.append("</versions>");
+        metadata.append("</versioning>");
+        metadata.append("</metadata>");
+        
+        return metadata.toString();
+    }
+}